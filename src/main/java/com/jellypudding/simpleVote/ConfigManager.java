@@ -12,6 +12,17 @@ public class ConfigManager {
     
     private int tokensPerVote;
     private boolean broadcastVotes;
+    private long flushIntervalMillis;
+    private int flushBatchSize;
+    private int cacheSize;
+    private String storageType;
+    private String databaseUrl;
+    private String databaseUsername;
+    private String databasePassword;
+    private String databaseTable;
+    private long sharedPollIntervalMillis;
+    private int ledgerRetentionDays;
+    private int voteHistoryRetentionDays;
     private List<Map<String, String>> votingSites;
     
     public ConfigManager(SimpleVote plugin) {
@@ -59,6 +70,21 @@ public class ConfigManager {
         // Load values
         tokensPerVote = config.getInt("tokens-per-vote");
         broadcastVotes = config.getBoolean("broadcast-votes");
+        flushIntervalMillis = config.getLong("storage.flush-interval-ms", 1000);
+        flushBatchSize = config.getInt("storage.flush-batch-size", 100);
+        cacheSize = config.getInt("storage.cache-size", 10000);
+        storageType = config.getString("storage.type", "sqlite");
+        databaseUrl = config.getString("storage.mysql.url", "jdbc:mysql://localhost:3306/minecraft");
+        databaseUsername = config.getString("storage.mysql.username", "");
+        databasePassword = config.getString("storage.mysql.password", "");
+        databaseTable = config.getString("storage.mysql.table", "simplevote_balances");
+        sharedPollIntervalMillis = config.getLong("storage.mysql.poll-interval-ms", 1000);
+        ledgerRetentionDays = config.getInt("storage.ledger-retention-days", 30);
+        voteHistoryRetentionDays = config.getInt("storage.vote-history-retention-days", 90);
+        if (!databaseTable.matches("[A-Za-z0-9_]+")) {
+            plugin.getLogger().warning("Invalid storage.mysql.table '" + databaseTable + "', using simplevote_balances");
+            databaseTable = "simplevote_balances";
+        }
         
         // Load voting sites
         votingSites = new ArrayList<>();
@@ -88,6 +114,50 @@ public class ConfigManager {
         return broadcastVotes;
     }
     
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+    
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+    
+    public int getCacheSize() {
+        return cacheSize;
+    }
+    
+    public String getStorageType() {
+        return storageType;
+    }
+    
+    public String getDatabaseUrl() {
+        return databaseUrl;
+    }
+    
+    public String getDatabaseUsername() {
+        return databaseUsername;
+    }
+    
+    public String getDatabasePassword() {
+        return databasePassword;
+    }
+    
+    public String getDatabaseTable() {
+        return databaseTable;
+    }
+    
+    public long getSharedPollIntervalMillis() {
+        return sharedPollIntervalMillis;
+    }
+    
+    public int getLedgerRetentionDays() {
+        return ledgerRetentionDays;
+    }
+    
+    public int getVoteHistoryRetentionDays() {
+        return voteHistoryRetentionDays;
+    }
+    
     public List<Map<String, String>> getVotingSites() {
         return votingSites;
     }
@@ -0,0 +1,256 @@
+package com.jellypudding.simpleVote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ranking of players by their tokens, kept in memory and updated with every change, so it can
+ * be read without touching the database.
+ * Players are kept in a treap ordered by tokens, most first, with each node counting the nodes
+ * below it. Looking up a rank, changing a balance and finding the start of a page all take
+ * O(log n). Players with no tokens aren't ranked.
+ *
+ * Ranks are shared by players with the same tokens, so 10, 8, 8, 5 are ranked 1, 2, 2, 4.
+ */
+public class Leaderboard {
+    /**
+     * A ranked player.
+     */
+    public record Entry(UUID playerUUID, int tokens, int rank) {
+    }
+
+    private static final class Node {
+        final UUID playerUUID;
+        final int tokens;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(UUID playerUUID, int tokens) {
+            this.playerUUID = playerUUID;
+            this.tokens = tokens;
+            this.priority = ThreadLocalRandom.current().nextInt();
+        }
+    }
+
+    private final Map<UUID, Integer> balances = new HashMap<>();
+    private Node root;
+    private boolean loaded;
+    // Players changed while the stored balances are being loaded, whose loaded balance is out of date
+    private Set<UUID> changedWhileLoading = new HashSet<>();
+
+    /**
+     * Check whether the stored balances have been loaded. Until then only players whose tokens
+     * changed since the server started are ranked.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Get the number of players ranked, those with any tokens.
+     */
+    public synchronized int size() {
+        return balances.size();
+    }
+
+    /**
+     * Get a player's rank.
+     *
+     * @param playerUUID The player's UUID
+     * @return The player's rank, starting at 1, or 0 if they have no tokens
+     */
+    public synchronized int getRank(UUID playerUUID) {
+        Integer tokens = balances.get(playerUUID);
+        return tokens != null ? countAbove(tokens) + 1 : 0;
+    }
+
+    /**
+     * Get a page of the ranking, from the most tokens down.
+     *
+     * @param offset Number of players to skip
+     * @param count Most players to return
+     * @return The players at those positions, fewer if the ranking ends first
+     */
+    public synchronized List<Entry> getTop(int offset, int count) {
+        List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(count, balances.size() - offset)));
+        if (offset < 0 || count <= 0 || offset >= balances.size()) {
+            return entries;
+        }
+        collect(root, offset, count, entries);
+        return entries;
+    }
+
+    /**
+     * Set a player's tokens, called for every change.
+     */
+    synchronized void update(UUID playerUUID, int tokens) {
+        if (changedWhileLoading != null) {
+            changedWhileLoading.add(playerUUID);
+        }
+        put(playerUUID, tokens);
+    }
+
+    /**
+     * Add a stored balance, unless the player has changed since loading started.
+     */
+    synchronized void load(UUID playerUUID, int tokens) {
+        if (!changedWhileLoading.contains(playerUUID)) {
+            put(playerUUID, tokens);
+        }
+    }
+
+    /**
+     * Mark the stored balances as loaded.
+     */
+    synchronized void finishLoading() {
+        loaded = true;
+        changedWhileLoading = null;
+    }
+
+    private void put(UUID playerUUID, int tokens) {
+        Integer previous = tokens > 0 ? balances.put(playerUUID, tokens) : balances.remove(playerUUID);
+        if (previous != null) {
+            if (previous == tokens) {
+                return;
+            }
+            root = remove(root, playerUUID, previous);
+        }
+        if (tokens > 0) {
+            root = insert(root, new Node(playerUUID, tokens));
+        }
+    }
+
+    /**
+     * Check whether a player comes before a node, by most tokens and then by UUID.
+     */
+    private static boolean before(UUID playerUUID, int tokens, Node node) {
+        if (tokens != node.tokens) {
+            return tokens > node.tokens;
+        }
+        return playerUUID.compareTo(node.playerUUID) < 0;
+    }
+
+    private static int size(Node node) {
+        return node != null ? node.size : 0;
+    }
+
+    private static Node resize(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private static Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        if (before(added.playerUUID, added.tokens, node)) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) {
+                // Rotate right
+                Node top = node.left;
+                node.left = top.right;
+                top.right = resize(node);
+                node = top;
+            }
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) {
+                // Rotate left
+                Node top = node.right;
+                node.right = top.left;
+                top.left = resize(node);
+                node = top;
+            }
+        }
+        return resize(node);
+    }
+
+    private static Node remove(Node node, UUID playerUUID, int tokens) {
+        if (node == null) {
+            return null;
+        }
+        if (node.playerUUID.equals(playerUUID)) {
+            return merge(node.left, node.right);
+        }
+        if (before(playerUUID, tokens, node)) {
+            node.left = remove(node.left, playerUUID, tokens);
+        } else {
+            node.right = remove(node.right, playerUUID, tokens);
+        }
+        return resize(node);
+    }
+
+    /**
+     * Join two treaps, every node of the first coming before every node of the second.
+     */
+    private static Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            return resize(first);
+        }
+        second.left = merge(first, second.left);
+        return resize(second);
+    }
+
+    /**
+     * Count the players with more tokens than a balance.
+     */
+    private int countAbove(int tokens) {
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.tokens > tokens) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add the players at positions offset to offset + count of a subtree, in order.
+     */
+    private void collect(Node node, int offset, int count, List<Entry> entries) {
+        while (node != null && entries.size() < count) {
+            int leftSize = size(node.left);
+            if (offset < leftSize) {
+                collect(node.left, offset, count, entries);
+                if (entries.size() >= count) {
+                    return;
+                }
+            }
+            if (offset <= leftSize) {
+                entries.add(entry(node, entries));
+            }
+            // Carry on down the right subtree without recursing
+            offset = Math.max(0, offset - leftSize - 1);
+            node = node.right;
+        }
+    }
+
+    private Entry entry(Node node, List<Entry> entries) {
+        if (!entries.isEmpty()) {
+            Entry previous = entries.get(entries.size() - 1);
+            if (previous.tokens() == node.tokens) {
+                return new Entry(node.playerUUID, node.tokens, previous.rank());
+            }
+        }
+        return new Entry(node.playerUUID, node.tokens, countAbove(node.tokens) + 1);
+    }
+}
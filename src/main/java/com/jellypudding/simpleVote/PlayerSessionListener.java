@@ -0,0 +1,49 @@
+package com.jellypudding.simpleVote;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps the tokens of online players cached
+ * Tokens are loaded while the player is still logging in, off the main thread, so the main
+ * thread only ever finds online players in the cache. On quit they are released, to be
+ * dropped from the cache by the next flush once saved.
+ */
+public class PlayerSessionListener implements Listener {
+    private final TokenManager tokenManager;
+
+    public PlayerSessionListener(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        // Runs on a login thread, so waiting for the database here doesn't hold up the server
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            tokenManager.preloadPlayer(event.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        // The player won't join after all, let their tokens be evicted again
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            tokenManager.releasePlayer(event.getPlayer().getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onJoin(PlayerJoinEvent event) {
+        tokenManager.pinPlayer(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        tokenManager.releasePlayer(event.getPlayer().getUniqueId());
+    }
+}
@@ -6,6 +6,7 @@ import com.jellypudding.simpleVote.commands.TokenTabCompleter;
 import com.jellypudding.simpleVote.commands.VoteSitesCommand;
 import com.jellypudding.simpleVote.votifier.VotifierManager;
 import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public final class SimpleVote extends JavaPlugin {
@@ -26,6 +27,10 @@ public final class SimpleVote extends JavaPlugin {
         VoteListener voteListener = new VoteListener(this, tokenManager, configManager.getTokensPerVote());
         getServer().getPluginManager().registerEvents(voteListener, this);
         
+        // Keep online players' tokens cached, including anyone already online after a reload
+        getServer().getPluginManager().registerEvents(new PlayerSessionListener(tokenManager), this);
+        tokenManager.preloadPlayers(getServer().getOnlinePlayers().stream().map(Player::getUniqueId).toList());
+        
         // Initialize built-in Votifier functionality (directly receives votes from voting websites)
         votifierManager = new VotifierManager(this);
         votifierManager.initialize();
@@ -64,7 +69,7 @@ public final class SimpleVote extends JavaPlugin {
         PluginCommand tokensCommand = getCommand("tokens");
         if (tokensCommand != null) {
             TokenCommand executor = new TokenCommand(this, tokenManager);
-            TokenTabCompleter tabCompleter = new TokenTabCompleter();
+            TokenTabCompleter tabCompleter = new TokenTabCompleter(tokenManager);
             
             tokensCommand.setExecutor(executor);
             tokensCommand.setTabCompleter(tabCompleter);
@@ -0,0 +1,371 @@
+package com.jellypudding.simpleVote;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Size-bounded cache of player token balances.
+ * Each entry keeps a small use counter. Eviction sweeps the cache like a clock, halving the
+ * counters as it goes and removing entries that are no longer in use, so frequently used
+ * balances stay cached. Pinned players (those online) are never evicted.
+ *
+ * Balances are stored in open-addressing tables of primitive arrays, keyed on the two halves
+ * of the UUID, so an entry takes 30 to 60 bytes depending on how full its table is, instead of
+ * the 80 or more of a ConcurrentHashMap's UUID, boxed Integer and node. The tables are split
+ * into segments, each with its own lock.
+ */
+public class TokenCache {
+    /**
+     * Snapshot of the cache's statistics.
+     */
+    public record Stats(int size, int pinned, long hits, long misses, long evictions) {
+    }
+
+    /**
+     * Changes a cached balance, called while holding the player's entry.
+     */
+    @FunctionalInterface
+    interface Update {
+        int apply(UUID playerUUID, int current);
+    }
+
+    /** Returned by {@link #getIfPresent(UUID)} when a balance isn't cached, balances are never negative */
+    static final int ABSENT = -1;
+
+    private static final int MAX_USES = 15;
+    // Halvings needed to bring MAX_USES down to zero, plus a pass to evict
+    private static final int MAX_PASSES = 5;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+
+    /**
+     * One lock's worth of the cache, a linear probing table over parallel arrays.
+     */
+    private static final class Segment {
+        long[] mostBits;
+        long[] leastBits;
+        int[] tokens;
+        byte[] uses;
+        byte[] states;
+        int size;
+        // Full and removed slots, which both lengthen probe sequences
+        int used;
+        // Counts removals and changes to uncached balances, a balance loaded while it moves may be stale
+        int invalidations;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            mostBits = new long[capacity];
+            leastBits = new long[capacity];
+            tokens = new int[capacity];
+            uses = new byte[capacity];
+            states = new byte[capacity];
+            size = 0;
+            used = 0;
+        }
+
+        /**
+         * Find a key's slot, or -1 if it isn't present.
+         */
+        int find(long most, long least, int hash) {
+            int mask = states.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                byte state = states[slot];
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == FULL && mostBits[slot] == most && leastBits[slot] == least) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Add a key known to be absent, growing the table first if needed.
+         */
+        int insert(long most, long least, int hash, int value) {
+            if ((used + 1) * 4 > states.length * 3) {
+                // Double when mostly full, otherwise rehashing just clears out removed slots
+                rehash(size * 2 >= states.length ? states.length * 2 : states.length);
+            }
+
+            int mask = states.length - 1;
+            int slot = hash & mask;
+            while (states[slot] == FULL) {
+                slot = (slot + 1) & mask;
+            }
+            if (states[slot] == EMPTY) {
+                used++;
+            }
+            states[slot] = FULL;
+            mostBits[slot] = most;
+            leastBits[slot] = least;
+            tokens[slot] = value;
+            uses[slot] = 1;
+            size++;
+            return slot;
+        }
+
+        void remove(int slot) {
+            states[slot] = REMOVED;
+            size--;
+            invalidations++;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldMost = mostBits;
+            long[] oldLeast = leastBits;
+            int[] oldTokens = tokens;
+            byte[] oldUses = uses;
+            byte[] oldStates = states;
+
+            allocate(capacity);
+            for (int i = 0; i < oldStates.length; i++) {
+                if (oldStates[i] == FULL) {
+                    int slot = insert(oldMost[i], oldLeast[i], hash(oldMost[i], oldLeast[i]), oldTokens[i]);
+                    uses[slot] = oldUses[i];
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final Set<UUID> pinned = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize Entries kept before unpinned ones start being evicted
+     */
+    TokenCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+    }
+
+    /**
+     * Get a cached balance without loading it.
+     *
+     * @return The balance, or {@link #ABSENT} if it isn't cached
+     */
+    int getIfPresent(UUID playerUUID) {
+        long most = playerUUID.getMostSignificantBits();
+        long least = playerUUID.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(most, least, hash);
+            if (slot < 0) {
+                return ABSENT;
+            }
+            touch(segment, slot);
+            hits.increment();
+            return segment.tokens[slot];
+        }
+    }
+
+    /**
+     * Get a balance, loading and caching it if needed.
+     */
+    int get(UUID playerUUID, ToIntFunction<UUID> loader) {
+        int cached = getIfPresent(playerUUID);
+        if (cached != ABSENT) {
+            return cached;
+        }
+        return update(playerUUID, loader, (uuid, current) -> current);
+    }
+
+    /**
+     * Atomically change a balance, loading it first if needed.
+     * The update runs while holding the player's segment, so updates to one player never interleave.
+     * Loading happens without holding it, so lookups of other players never wait on the store. If
+     * anything in the segment was removed or changed while uncached in the meantime, the balance is
+     * loaded again.
+     *
+     * @return The new balance
+     */
+    int update(UUID playerUUID, ToIntFunction<UUID> loader, Update update) {
+        long most = playerUUID.getMostSignificantBits();
+        long least = playerUUID.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segmentFor(hash);
+        int invalidations;
+        synchronized (segment) {
+            int slot = segment.find(most, least, hash);
+            if (slot >= 0) {
+                hits.increment();
+                touch(segment, slot);
+                return apply(segment, slot, playerUUID, update);
+            }
+            invalidations = segment.invalidations;
+        }
+
+        misses.increment();
+        while (true) {
+            int loaded = loader.applyAsInt(playerUUID);
+            synchronized (segment) {
+                int slot = segment.find(most, least, hash);
+                if (slot >= 0) {
+                    // Loaded by someone else in the meantime
+                    touch(segment, slot);
+                } else if (segment.invalidations != invalidations) {
+                    invalidations = segment.invalidations;
+                    continue;
+                } else {
+                    slot = segment.insert(most, least, hash, loaded);
+                    size.incrementAndGet();
+                }
+                return apply(segment, slot, playerUUID, update);
+            }
+        }
+    }
+
+    /**
+     * Change a balance only if it is cached, without counting it as a use.
+     *
+     * @return True if the balance was cached
+     */
+    boolean updateIfPresent(UUID playerUUID, Update update) {
+        long most = playerUUID.getMostSignificantBits();
+        long least = playerUUID.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(most, least, hash);
+            if (slot < 0) {
+                segment.invalidations++;
+                return false;
+            }
+            segment.tokens[slot] = update.apply(playerUUID, segment.tokens[slot]);
+            return true;
+        }
+    }
+
+    /**
+     * Keep a player's balance cached until they are unpinned.
+     */
+    void pin(UUID playerUUID) {
+        pinned.add(playerUUID);
+    }
+
+    void unpin(UUID playerUUID) {
+        pinned.remove(playerUUID);
+    }
+
+    /**
+     * Remove a player's balance unless it is pinned or kept.
+     *
+     * @param keep Entries to keep regardless, checked while holding the entry
+     * @return True if the balance was removed
+     */
+    boolean release(UUID playerUUID, Predicate<UUID> keep) {
+        long most = playerUUID.getMostSignificantBits();
+        long least = playerUUID.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(most, least, hash);
+            if (slot < 0 || pinned.contains(playerUUID) || keep.test(playerUUID)) {
+                return false;
+            }
+            segment.remove(slot);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Check whether the cache has grown past its maximum size.
+     */
+    boolean isOverCapacity() {
+        return size.get() > maxSize;
+    }
+
+    /**
+     * Evict unpinned entries until the cache is back under its maximum size.
+     * Stops early if everything left is pinned or kept.
+     *
+     * @param keep Entries to keep regardless, checked while holding the entry
+     * @return The number of entries evicted
+     */
+    int evict(Predicate<UUID> keep) {
+        // Free a little more than needed, so eviction doesn't run for every new entry
+        int target = maxSize - maxSize / 10;
+        int evicted = 0;
+
+        // Each pass halves every counter, so after enough passes any unused entry can go
+        for (int pass = 0; pass < MAX_PASSES && size.get() > target; pass++) {
+            for (int i = 0; i < SEGMENT_COUNT && size.get() > target; i++) {
+                Segment segment = segments[i];
+                synchronized (segment) {
+                    for (int slot = 0; slot < segment.states.length && size.get() > target; slot++) {
+                        if (segment.states[slot] != FULL) {
+                            continue;
+                        }
+                        if (segment.uses[slot] > 0) {
+                            segment.uses[slot] >>= 1;
+                            continue;
+                        }
+
+                        UUID playerUUID = new UUID(segment.mostBits[slot], segment.leastBits[slot]);
+                        if (pinned.contains(playerUUID) || keep.test(playerUUID)) {
+                            continue;
+                        }
+                        segment.remove(slot);
+                        size.decrementAndGet();
+                        evicted++;
+                    }
+                }
+            }
+        }
+
+        evictions.add(evicted);
+        return evicted;
+    }
+
+    Stats getStats() {
+        return new Stats(size.get(), pinned.size(), hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private Segment segmentFor(int hash) {
+        // Segments use the top bits, slots within a segment the bottom ones
+        return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    private static int apply(Segment segment, int slot, UUID playerUUID, Update update) {
+        int updated = update.apply(playerUUID, segment.tokens[slot]);
+        segment.tokens[slot] = updated;
+        return updated;
+    }
+
+    private static void touch(Segment segment, int slot) {
+        if (segment.uses[slot] < MAX_USES) {
+            segment.uses[slot]++;
+        }
+    }
+
+    private static int hash(long most, long least) {
+        // Random UUIDs are already well mixed, but offline-mode ones are name hashes with fixed version bits
+        long hash = most ^ Long.rotateLeft(least, 32);
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (hash ^ (hash >>> 33));
+    }
+}
@@ -1,127 +1,465 @@
 package com.jellypudding.simpleVote;
 
+import com.jellypudding.simpleVote.storage.JdbcTokenStore;
+import com.jellypudding.simpleVote.storage.MemoryTokenStore;
+import com.jellypudding.simpleVote.storage.SQLiteTokenStore;
+import com.jellypudding.simpleVote.storage.StorageException;
+import com.jellypudding.simpleVote.storage.TokenChange;
+import com.jellypudding.simpleVote.storage.TokenStore;
+import com.jellypudding.simpleVote.storage.TokenTransaction;
+import com.jellypudding.simpleVote.storage.VotePeriod;
+import com.jellypudding.simpleVote.storage.VoteRecord;
+
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
- * Manages player vote tokens using an SQLite database.
+ * Manages player vote tokens, kept in the {@link TokenStore} chosen in the config.
+ * The cache holds the current balances. Changed balances are written behind by a background
+ * thread, which saves everything changed since its last run in a single transaction.
+ * The async methods run on that same database thread and should be preferred on the main
+ * thread, since the blocking ones may have to load a player from the store.
+ * When the store is shared with other servers, cached balances are refreshed from it regularly.
+ * Every change also updates the {@link Leaderboard}, which is loaded from the store on startup,
+ * and is saved to the store's transaction ledger. Changes given an idempotency key, such as the
+ * vote they reward, are only ever applied once.
+ * Votes received are kept in the store's vote history, saved in batches along with the tokens.
  */
 public class TokenManager {
+    // Longest idempotency key stored as it is, longer ones are hashed
+    private static final int MAX_KEY_LENGTH = 191;
+    // Transactions folded into snapshots per step of compaction
+    private static final int COMPACTION_CHUNK = 5000;
+    // Votes deleted from the history per step of pruning
+    private static final int PRUNE_CHUNK = 5000;
+    // Longest names and addresses kept in the vote history, longer ones are cut short
+    private static final int MAX_VOTE_TEXT_LENGTH = 64;
+    // Longest service name kept in the vote history, which is counted per service
+    private static final int MAX_SERVICE_LENGTH = 191;
+    // Recorded in the history in place of a missing username or service
+    private static final String UNKNOWN_VOTE_TEXT = "unknown";
+    // Players preloaded at pre-login who haven't joined after this long are unpinned
+    private static final long JOIN_TIMEOUT_MS = 60_000;
+
     private final SimpleVote plugin;
-    private final Map<UUID, Integer> cachedTokens = new ConcurrentHashMap<>();
-    private Connection connection;
-    private final String databaseUrl;
+    private final TokenCache cache;
+    private final Leaderboard leaderboard = new Leaderboard();
+    // Changes not yet saved, only ever updated while holding the player's cache entry
+    private final Map<UUID, TokenChange> pendingChanges = new ConcurrentHashMap<>();
+    // Idempotency keys of transactions made but not yet saved
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    // Changes taken by the flush in progress, kept until they are committed
+    private volatile Map<UUID, TokenChange> savingChanges = Map.of();
+    // Votes received but not yet saved to the history
+    private final Queue<VoteRecord> pendingVotes = new ConcurrentLinkedQueue<>();
+    // Tasks waiting for the tokens changed before them to be saved
+    private final Queue<PersistCallback> persistCallbacks = new ConcurrentLinkedQueue<>();
+    // Players changed since the last task was queued, and not yet saved, which the next task waits for
+    private final Set<UUID> changedSinceCallback = ConcurrentHashMap.newKeySet();
+    // Players pinned at pre-login who haven't joined yet, and when they were pinned
+    private final Map<UUID, Long> awaitingJoin = new ConcurrentHashMap<>();
+    // Players who quit, dropped from the cache by the next flush once their changes are saved
+    private final Queue<UUID> releasedPlayers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicBoolean evictionRequested = new AtomicBoolean();
+    // Guards the store, which is shared by the database thread and any blocking callers
+    private final Object databaseLock = new Object();
+    private final int flushBatchSize;
+    // Single thread running async operations and flushes in the order they were submitted
+    private final ScheduledExecutorService databaseExecutor;
+    private final TokenStore store;
 
     public TokenManager(SimpleVote plugin) {
         this.plugin = plugin;
-        File databaseFile = new File(plugin.getDataFolder(), "tokens.db");
-        this.databaseUrl = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+        this.flushBatchSize = Math.max(1, plugin.getConfigManager().getFlushBatchSize());
+        this.cache = new TokenCache(plugin.getConfigManager().getCacheSize());
 
         // Ensure plugin data folder exists
         if (!plugin.getDataFolder().exists()) {
             plugin.getDataFolder().mkdirs();
         }
 
+        this.store = createStore();
         try {
-            // Load the SQLite JDBC driver
-            Class.forName("org.sqlite.JDBC");
-            // Establish connection
-            this.connection = DriverManager.getConnection(databaseUrl);
-            initializeDatabase();
-        } catch (SQLException e) {
-            plugin.getLogger().log(Level.SEVERE, "Failed to connect to SQLite database: " + e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            plugin.getLogger().log(Level.SEVERE, "SQLite JDBC driver not found. Make sure it's included in your plugin JAR.", e);
+            store.open();
+        } catch (StorageException e) {
+            // Every later use tries to connect again
+            plugin.getLogger().log(Level.SEVERE, "Failed to open token storage: " + e.getMessage(), e);
+        }
+
+        // Save changed tokens in the background, so votes don't wait on the disk
+        databaseExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimpleVote-Database");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushInterval = Math.max(50, plugin.getConfigManager().getFlushIntervalMillis());
+        databaseExecutor.scheduleWithFixedDelay(this::flushChanges, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        databaseExecutor.execute(this::runStoreMaintenance);
+
+        // Other servers sharing the store change balances this one has cached
+        long pollInterval = plugin.getConfigManager().getSharedPollIntervalMillis();
+        if (store.isShared() && pollInterval > 0) {
+            pollInterval = Math.max(50, pollInterval);
+            databaseExecutor.scheduleWithFixedDelay(this::pollSharedChanges, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        }
+
+        // Keep the ledger from growing forever, transactions older than this are folded into snapshots
+        int retentionDays = plugin.getConfigManager().getLedgerRetentionDays();
+        if (retentionDays > 0) {
+            long retention = TimeUnit.DAYS.toMillis(retentionDays);
+            databaseExecutor.scheduleWithFixedDelay(() -> compactLedger(System.currentTimeMillis() - retention, 0),
+                    1, 1, TimeUnit.HOURS);
+        }
+
+        // Old votes are dropped from the history, their daily and monthly counts are kept
+        int voteRetentionDays = plugin.getConfigManager().getVoteHistoryRetentionDays();
+        if (voteRetentionDays > 0) {
+            long retention = TimeUnit.DAYS.toMillis(voteRetentionDays);
+            databaseExecutor.scheduleWithFixedDelay(() -> pruneVoteHistory(System.currentTimeMillis() - retention, 0),
+                    1, 1, TimeUnit.HOURS);
         }
     }
 
     /**
-     * Creates the necessary database table if it doesn't exist.
+     * Create the store selected by storage.type in the config.
      */
-    private void initializeDatabase() {
-        // Use try-with-resources for automatic closing of the statement
-        try (Statement statement = connection.createStatement()) {
-            // Removed NOT NULL constraint for tokens to avoid potential issues with default values or insertion
-            statement.execute("CREATE TABLE IF NOT EXISTS player_tokens (" +
-                              "uuid TEXT PRIMARY KEY, " +
-                              "tokens INTEGER DEFAULT 0" + // Set default to 0
-                              ");");
-            plugin.getLogger().info("Database table 'player_tokens' initialised successfully.");
-        } catch (SQLException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not create database table: " + e.getMessage(), e);
+    private TokenStore createStore() {
+        ConfigManager config = plugin.getConfigManager();
+        String type = config.getStorageType().toLowerCase(Locale.ROOT);
+        switch (type) {
+            case "mysql", "mariadb" -> {
+                return new JdbcTokenStore(config.getDatabaseUrl(), config.getDatabaseUsername(),
+                        config.getDatabasePassword(), config.getDatabaseTable(), plugin.getLogger());
+            }
+            case "memory" -> {
+                plugin.getLogger().warning("Token balances are only kept in memory and will be lost when the server stops!");
+                return new MemoryTokenStore();
+            }
+            case "sqlite" -> {
+                return new SQLiteTokenStore(new File(plugin.getDataFolder(), "tokens.db"), plugin.getLogger());
+            }
+            default -> {
+                plugin.getLogger().warning("Unknown storage type '" + type + "', using sqlite");
+                return new SQLiteTokenStore(new File(plugin.getDataFolder(), "tokens.db"), plugin.getLogger());
+            }
         }
     }
 
     /**
-     * Close the database connection. Should be called on plugin disable.
+     * Run the store's background work a step at a time, so loads and flushes can run in between,
+     * then load the leaderboard.
      */
-    public void closeConnection() {
-        if (connection != null) {
+    private void runStoreMaintenance() {
+        boolean more;
+        synchronized (databaseLock) {
             try {
-                if (!connection.isClosed()) {
-                    connection.close();
-                    plugin.getLogger().info("Database connection closed.");
-                }
-            } catch (SQLException e) {
-                plugin.getLogger().log(Level.SEVERE, "Error closing database connection: " + e.getMessage(), e);
+                more = store.runMaintenanceStep();
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                more = false;
+            }
+        }
+        if (more) {
+            try {
+                databaseExecutor.execute(this::runStoreMaintenance);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the store carries on next start
+            }
+            return;
+        }
+        loadLeaderboard();
+    }
+
+    /**
+     * Rank every stored balance, once the store has finished any background work that moves them.
+     * Runs on the database thread. Players changed meanwhile keep the balance they were changed to.
+     */
+    private void loadLeaderboard() {
+        long start = System.nanoTime();
+        synchronized (databaseLock) {
+            try {
+                store.loadAll(leaderboard::load);
+            } catch (StorageException e) {
+                // Ranks only players changed since the server started
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        leaderboard.finishLoading();
+        if (plugin.getConfig().getBoolean("debug-mode", false)) {
+            plugin.getLogger().info("Loaded " + leaderboard.size() + " players into the leaderboard in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+    }
+
+    /**
+     * Fold a chunk of old transactions into snapshots, then queue the next chunk behind whatever
+     * else is waiting for the database thread.
+     *
+     * @param before Transactions made before this time are folded
+     * @param compacted Transactions folded by the previous chunks
+     */
+    private void compactLedger(long before, int compacted) {
+        int folded;
+        synchronized (databaseLock) {
+            try {
+                folded = store.compactTransactions(before, COMPACTION_CHUNK);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                return;
+            }
+        }
+        if (folded == COMPACTION_CHUNK) {
+            try {
+                databaseExecutor.execute(() -> compactLedger(before, compacted + folded));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the rest is folded next time
+            }
+        }
+        if (compacted + folded > 0 && plugin.getConfig().getBoolean("debug-mode", false)) {
+            plugin.getLogger().info("Compacted " + (compacted + folded) + " token transactions into snapshots");
+        }
+    }
+
+    /**
+     * Delete a chunk of old votes from the history, then queue the next chunk behind whatever else
+     * is waiting for the database thread.
+     *
+     * @param before Votes received before this time are deleted
+     * @param pruned Votes deleted by the previous chunks
+     */
+    private void pruneVoteHistory(long before, int pruned) {
+        int deleted;
+        synchronized (databaseLock) {
+            try {
+                deleted = store.pruneVotes(before, PRUNE_CHUNK);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                return;
+            }
+        }
+        if (deleted == PRUNE_CHUNK) {
+            try {
+                databaseExecutor.execute(() -> pruneVoteHistory(before, pruned + deleted));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the rest is deleted next time
+            }
+        }
+        if (pruned + deleted > 0 && plugin.getConfig().getBoolean("debug-mode", false)) {
+            plugin.getLogger().info("Pruned " + (pruned + deleted) + " old votes from the vote history");
+        }
+    }
+
+    /**
+     * Save any unsaved tokens and close the store. Should be called on plugin disable.
+     */
+    public void closeConnection() {
+        // Queued operations still run before the thread stops
+        databaseExecutor.shutdown();
+        try {
+            if (!databaseExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Database thread did not stop in time");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushChanges();
+
+        synchronized (databaseLock) {
+            store.close();
         }
     }
 
     /**
-     * Load a player's tokens from the database.
-     * This is called internally by computeIfAbsent when a player's tokens aren't cached.
+     * Load a player's tokens from the store.
+     * This is called internally by the cache when a player's tokens aren't cached.
      *
      * @param playerUUID The player's UUID
      * @return The number of tokens the player has
      */
     private int loadPlayerTokens(UUID playerUUID) {
-        String sqlSelect = "SELECT tokens FROM player_tokens WHERE uuid = ?";
-        try (PreparedStatement pstmtSelect = connection.prepareStatement(sqlSelect)) {
-            pstmtSelect.setString(1, playerUUID.toString());
-            try (ResultSet rs = pstmtSelect.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("tokens");
-                } else {
-                    // Player not in DB yet. Insert a new record with 0 tokens.
-                    // DO NOT call setTokens() here to avoid recursive update on the cache.
-                    String sqlInsert = "INSERT OR IGNORE INTO player_tokens (uuid, tokens) VALUES (?, ?)";
-                    try (PreparedStatement pstmtInsert = connection.prepareStatement(sqlInsert)) {
-                        pstmtInsert.setString(1, playerUUID.toString());
-                        pstmtInsert.setInt(2, 0);
-                        pstmtInsert.executeUpdate();
-                        // The computeIfAbsent call in getTokens will handle caching this '0'
-                    } catch (SQLException insertEx) {
-                        plugin.getLogger().log(Level.SEVERE, "Could not insert initial token record for player " + playerUUID + ": " + insertEx.getMessage(), insertEx);
-                        // Still return 0, but log the error
-                    }
-                    return 0;
-                }
+        int tokens;
+        synchronized (databaseLock) {
+            try {
+                tokens = store.load(playerUUID);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                return 0; // Return default value on error
+            }
+        }
+        return storedOrNew(playerUUID, tokens);
+    }
+
+    /**
+     * Use a loaded balance, or start a player with none at 0.
+     */
+    private int storedOrNew(UUID playerUUID, int tokens) {
+        if (tokens == TokenStore.ABSENT) {
+            // Player not stored yet. Their record with 0 tokens is written by the next flush.
+            // DO NOT call setTokens() here to avoid recursive update on the cache.
+            recordChange(playerUUID, TokenChange.delta(0));
+            return 0;
+        }
+        return tokens;
+    }
+
+    /**
+     * Get the number of tokens a player has, loading them on the database thread if they aren't cached.
+     *
+     * @param playerUUID The player's UUID
+     * @return A future completed with the number of tokens the player has
+     */
+    public CompletableFuture<Integer> getTokensAsync(UUID playerUUID) {
+        int cached = cache.getIfPresent(playerUUID);
+        if (cached != TokenCache.ABSENT) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return supplyAsync(() -> getTokens(playerUUID));
+    }
+
+    /**
+     * Add tokens to a player on the database thread.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The amount of tokens to add
+     * @return A future completed with the player's new number of tokens
+     */
+    public CompletableFuture<Integer> addTokensAsync(UUID playerUUID, int amount) {
+        return supplyAsync(() -> changeTokens(playerUUID, amount, null));
+    }
+
+    /**
+     * Add tokens to a player on the database thread, unless it was already done with the same key.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The amount of tokens to add
+     * @param transactionKey Idempotency key identifying this addition, such as the vote it rewards
+     * @return A future completed with the player's new number of tokens, or their current number if the key was used before
+     */
+    public CompletableFuture<Integer> addTokensAsync(UUID playerUUID, int amount, String transactionKey) {
+        String key = normaliseKey(transactionKey);
+        return supplyAsync(() -> claimKey(key) ? changeTokens(playerUUID, amount, key) : getTokens(playerUUID));
+    }
+
+    /**
+     * Remove tokens from a player on the database thread.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The amount of tokens to remove
+     * @return A future completed with true if the player had enough tokens, false otherwise
+     */
+    public CompletableFuture<Boolean> removeTokensAsync(UUID playerUUID, int amount) {
+        return supplyAsync(() -> removeTokens(playerUUID, amount));
+    }
+
+    /**
+     * Remove tokens from a player on the database thread, unless it was already done with the same key.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The amount of tokens to remove
+     * @param transactionKey Idempotency key identifying this removal
+     * @return A future completed with true if the tokens were removed, now or before, false if the player didn't have enough
+     */
+    public CompletableFuture<Boolean> removeTokensAsync(UUID playerUUID, int amount, String transactionKey) {
+        String key = normaliseKey(transactionKey);
+        return supplyAsync(() -> {
+            if (!claimKey(key)) {
+                return true;
+            }
+            boolean removed = removeTokens(playerUUID, amount, key);
+            if (!removed) {
+                // Nothing was recorded, so the key may be used again
+                pendingKeys.remove(key);
+            }
+            return removed;
+        });
+    }
+
+    /**
+     * Set a player's tokens on the database thread.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The new amount of tokens
+     * @return A future completed once the cache holds the new amount
+     */
+    public CompletableFuture<Void> setTokensAsync(UUID playerUUID, int amount) {
+        return supplyAsync(() -> {
+            setTokens(playerUUID, amount);
+            return null;
+        });
+    }
+
+    /**
+     * Set a player's tokens on the database thread, unless it was already done with the same key.
+     *
+     * @param playerUUID The player's UUID
+     * @param amount The new amount of tokens
+     * @param transactionKey Idempotency key identifying this change
+     * @return A future completed once the cache holds the new amount, or straight away if the key was used before
+     */
+    public CompletableFuture<Void> setTokensAsync(UUID playerUUID, int amount, String transactionKey) {
+        String key = normaliseKey(transactionKey);
+        return supplyAsync(() -> {
+            if (claimKey(key)) {
+                setTokens(playerUUID, amount, key);
+            }
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(operation, databaseExecutor);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the connection is still open until closeConnection() finishes
+            try {
+                return CompletableFuture.completedFuture(operation.get());
+            } catch (CompletionException failure) {
+                return CompletableFuture.failedFuture(failure.getCause());
             }
-        } catch (SQLException selectEx) {
-            plugin.getLogger().log(Level.SEVERE, "Could not load tokens for player " + playerUUID + ": " + selectEx.getMessage(), selectEx);
-            return 0; // Return default value on error
         }
     }
 
     /**
      * Get the number of tokens a player has (from cache or database).
+     * Blocks on the database if the player isn't cached, see {@link #getTokensAsync(UUID)}.
      *
      * @param playerUUID The player's UUID
      * @return The number of tokens the player has
      */
     public int getTokens(UUID playerUUID) {
         // Attempt to get from cache, if not present, load from DB (loadPlayerTokens)
-        return cachedTokens.computeIfAbsent(playerUUID, this::loadPlayerTokens);
+        int tokens = cache.get(playerUUID, this::loadPlayerTokens);
+        evictIfNeeded();
+        return tokens;
     }
 
     /**
@@ -131,52 +469,621 @@ public class TokenManager {
      * @param amount The amount of tokens to add
      */
     public void addTokens(UUID playerUUID, int amount) {
-        int currentTokens = getTokens(playerUUID); // Ensures player is loaded if not already
-        setTokens(playerUUID, currentTokens + amount);
+        changeTokens(playerUUID, amount, null);
+    }
+
+    /**
+     * Atomically add to (or take from) a player's tokens, never going below zero.
+     *
+     * @param key Idempotency key of the transaction, or null
+     * @return The player's new number of tokens
+     */
+    private int changeTokens(UUID playerUUID, int amount, String key) {
+        int tokens = cache.update(playerUUID, this::loadPlayerTokens, (uuid, current) -> {
+            int updated = (int) Math.max(0, Math.min(Integer.MAX_VALUE, (long) current + amount));
+            recordChange(uuid, transaction(TokenChange.delta(updated - current), updated - current, key));
+            leaderboard.update(uuid, updated);
+            return updated;
+        });
+        evictIfNeeded();
+        return tokens;
     }
 
     /**
      * Remove tokens from a player. Updates cache and database.
+     * The check and the removal are atomic, so two removals can't both spend the same tokens.
      *
      * @param playerUUID The player's UUID
      * @param amount The amount of tokens to remove
      * @return True if the player had enough tokens, false otherwise
      */
     public boolean removeTokens(UUID playerUUID, int amount) {
-        int currentTokens = getTokens(playerUUID); // Ensures player is loaded
-        if (currentTokens >= amount) {
-            setTokens(playerUUID, currentTokens - amount);
-            return true;
-        }
-        return false;
+        return removeTokens(playerUUID, amount, null);
+    }
+
+    private boolean removeTokens(UUID playerUUID, int amount, String key) {
+        boolean[] removed = new boolean[1];
+        cache.update(playerUUID, this::loadPlayerTokens, (uuid, current) -> {
+            if (current < amount) {
+                return current;
+            }
+            removed[0] = true;
+            recordChange(uuid, transaction(TokenChange.delta(-amount), -amount, key));
+            leaderboard.update(uuid, current - amount);
+            return current - amount;
+        });
+        evictIfNeeded();
+        return removed[0];
     }
 
     /**
-     * Set a player's tokens. Updates cache and saves to the database immediately.
+     * Set a player's tokens. Updates the cache straight away; the database is updated by the next flush.
      *
      * @param playerUUID The player's UUID
      * @param amount The new amount of tokens
      */
     public void setTokens(UUID playerUUID, int amount) {
-        if (amount < 0) amount = 0; // Ensure tokens don't go below zero
+        setTokens(playerUUID, amount, null);
+    }
 
-        // Update cache first for responsiveness
-        cachedTokens.put(playerUUID, amount);
+    private void setTokens(UUID playerUUID, int amount, String key) {
+        int total = Math.max(0, amount); // Ensure tokens don't go below zero
+        // The stored amount is replaced, but still loaded so the ledger records the real difference
+        cache.update(playerUUID, this::loadPlayerTokens, (uuid, current) -> {
+            recordChange(uuid, transaction(TokenChange.total(total), total - current, key));
+            leaderboard.update(uuid, total);
+            return total;
+        });
+        evictIfNeeded();
+    }
+
+    /**
+     * Keep a player's tokens cached, used while they are online.
+     *
+     * @param playerUUID The player's UUID
+     */
+    public void pinPlayer(UUID playerUUID) {
+        // Done while holding the player's pre-login entry, so it can't be unpinned as having never joined
+        awaitingJoin.compute(playerUUID, (uuid, since) -> {
+            cache.pin(uuid);
+            return null;
+        });
+    }
 
-        // Use INSERT OR REPLACE (or UPSERT) to handle both new and existing players
-        // This is more efficient than separate SELECT then INSERT/UPDATE
-        String sql = "INSERT OR REPLACE INTO player_tokens (uuid, tokens) VALUES (?, ?)";
+    /**
+     * Allow a player's tokens to be evicted from the cache again.
+     *
+     * @param playerUUID The player's UUID
+     */
+    public void unpinPlayer(UUID playerUUID) {
+        cache.unpin(playerUUID);
+    }
 
-        // Use try-with-resources for automatic closing of the PreparedStatement
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.setInt(2, amount);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not set tokens for player " + playerUUID + ": " + e.getMessage(), e);
-            // Consider how to handle this error - maybe remove from cache or retry?
-            // For now, we just log the error. The cache will have the new value,
-            // but the database might be out of sync until the next successful write.
+    /**
+     * Load a player's tokens into the cache and keep them there until they are released.
+     * Blocks on the database, so call it from an async thread such as pre-login. If the player
+     * doesn't join with {@link #pinPlayer(UUID)} within a minute, such as when their connection
+     * drops, they are released.
+     *
+     * @param playerUUID The player's UUID
+     */
+    public void preloadPlayer(UUID playerUUID) {
+        // Pinned first, so the balance can't be evicted between loading and the player joining
+        awaitingJoin.put(playerUUID, System.currentTimeMillis());
+        cache.pin(playerUUID);
+        getTokens(playerUUID);
+    }
+
+    /**
+     * Pin several players and load their tokens together on the database thread.
+     * Used for players already online when the plugin is enabled.
+     *
+     * @param playerUUIDs The players' UUIDs
+     */
+    public void preloadPlayers(Collection<UUID> playerUUIDs) {
+        List<UUID> players = List.copyOf(playerUUIDs);
+        if (players.isEmpty()) {
+            return;
         }
+        players.forEach(cache::pin);
+        try {
+            // No flush or eviction can run on the database thread between loading and caching, so nothing loaded is stale
+            databaseExecutor.execute(() -> {
+                Map<UUID, Integer> stored;
+                synchronized (databaseLock) {
+                    try {
+                        stored = store.loadMany(players);
+                    } catch (StorageException e) {
+                        // They are loaded one at a time when first used instead
+                        plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                        return;
+                    }
+                }
+                for (UUID playerUUID : players) {
+                    cache.get(playerUUID, uuid -> storedOrNew(uuid, stored.getOrDefault(uuid, TokenStore.ABSENT)));
+                }
+                evictIfNeeded();
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Unpin a player, to be dropped from the cache by the next flush once their tokens are saved.
+     * They stay cached if they were pinned again in the meantime, such as by logging back in.
+     *
+     * @param playerUUID The player's UUID
+     */
+    public void releasePlayer(UUID playerUUID) {
+        awaitingJoin.remove(playerUUID);
+        cache.unpin(playerUUID);
+        releasedPlayers.add(playerUUID);
+    }
+
+    /**
+     * Add a received vote to the vote history, unless a vote with the same key is already in it.
+     * It is saved by the next flush. Votes that are rewarded should use {@link #rewardVoteAsync} instead.
+     *
+     * @param playerUUID The voter's UUID, or null if they have never played on the server
+     * @param username The name the vote was for
+     * @param service The voting site's service name
+     * @param address The address the site gave for the voter
+     * @param transactionKey Idempotency key identifying the vote
+     */
+    public void recordVote(UUID playerUUID, String username, String service, String address, String transactionKey) {
+        addVote(playerUUID, username, service, address, normaliseKey(transactionKey));
+    }
+
+    /**
+     * Reward a vote with tokens on the database thread and add it to the vote history, unless it was
+     * rewarded already. The vote is only counted in the history when its reward is first given.
+     *
+     * @param playerUUID The voter's UUID
+     * @param username The name the vote was for
+     * @param service The voting site's service name
+     * @param address The address the site gave for the voter
+     * @param amount The amount of tokens to add
+     * @param transactionKey Idempotency key identifying the vote
+     * @return A future completed with the player's new number of tokens, or their current number if the vote was rewarded before
+     */
+    public CompletableFuture<Integer> rewardVoteAsync(UUID playerUUID, String username, String service, String address,
+                                                     int amount, String transactionKey) {
+        String key = normaliseKey(transactionKey);
+        return supplyAsync(() -> {
+            if (!claimKey(key)) {
+                return getTokens(playerUUID);
+            }
+            addVote(playerUUID, username, service, address, key);
+            return changeTokens(playerUUID, amount, key);
+        });
+    }
+
+    private void addVote(UUID playerUUID, String username, String service, String address, String key) {
+        // The history requires a username and service, a vote without one still counts
+        pendingVotes.add(new VoteRecord(playerUUID, truncate(orUnknown(username), MAX_VOTE_TEXT_LENGTH),
+                truncate(orUnknown(service), MAX_SERVICE_LENGTH), truncate(address, MAX_VOTE_TEXT_LENGTH),
+                System.currentTimeMillis(), key));
+    }
+
+    private static String orUnknown(String text) {
+        return text == null || text.isEmpty() ? UNKNOWN_VOTE_TEXT : text;
+    }
+
+    private static String truncate(String text, int length) {
+        return text != null && text.length() > length ? text.substring(0, length) : text;
+    }
+
+    /**
+     * Count a player's votes so far this day or month, on the database thread.
+     *
+     * @param playerUUID The player's UUID
+     * @param period Whether to count today's or this month's votes
+     * @return A future completed with the number of votes
+     */
+    public CompletableFuture<Integer> getVotesAsync(UUID playerUUID, VotePeriod period) {
+        return supplyAsync(() -> {
+            int current = period.of(System.currentTimeMillis());
+            flushVotes();
+            synchronized (databaseLock) {
+                try {
+                    return store.countVotes(playerUUID, period, current, current);
+                } catch (StorageException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Count the votes through each voting site over the last few days, on the database thread.
+     *
+     * @param days Number of days counted, including today
+     * @return A future completed with the number of votes by service name
+     */
+    public CompletableFuture<Map<String, Integer>> getServiceVotesAsync(int days) {
+        return supplyAsync(() -> {
+            int today = VotePeriod.DAY.of(System.currentTimeMillis());
+            flushVotes();
+            synchronized (databaseLock) {
+                try {
+                    return store.countServiceVotes(VotePeriod.DAY, today - Math.max(1, days) + 1, today);
+                } catch (StorageException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the ranking of players by tokens, which is read from memory and safe to use from any thread.
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Get the token cache's size, hit, miss and eviction counts.
+     */
+    public TokenCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Check whether a player has changes that aren't in the database yet.
+     */
+    private boolean isUnsaved(UUID playerUUID) {
+        // Changes are added to the saving batch before they leave the pending map, so checking in this order can't miss one
+        return pendingChanges.containsKey(playerUUID) || savingChanges.containsKey(playerUUID);
+    }
+
+    /**
+     * Trim the cache on the database thread once it grows past its maximum size.
+     */
+    private void evictIfNeeded() {
+        if (!cache.isOverCapacity() || !evictionRequested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            databaseExecutor.execute(() -> {
+                evictionRequested.set(false);
+                int evicted = cache.evict(this::isUnsaved);
+                if (plugin.getConfig().getBoolean("debug-mode", false)) {
+                    TokenCache.Stats stats = cache.getStats();
+                    plugin.getLogger().info("Evicted " + evicted + " token balances from the cache (" + stats.size() + " cached, "
+                            + stats.pinned() + " pinned, " + stats.hits() + " hits, " + stats.misses() + " misses)");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            evictionRequested.set(false);
+        }
+    }
+
+    /**
+     * Attach the transaction making a change for the ledger, unless it adds nothing and has no key.
+     * A new total always gets one, so the change knows where the total was set.
+     */
+    private static TokenChange transaction(TokenChange change, int amount, String key) {
+        if (amount == 0 && key == null && !change.absolute()) {
+            return change;
+        }
+        return change.with(new TokenTransaction(key, amount, System.currentTimeMillis()));
+    }
+
+    /**
+     * Reserve an idempotency key, unless a transaction with it was made already.
+     * Runs on the database thread. The key stays reserved until its transaction is saved.
+     *
+     * @return True if the key is new
+     */
+    private boolean claimKey(String key) {
+        if (!pendingKeys.add(key)) {
+            return false;
+        }
+        boolean used;
+        synchronized (databaseLock) {
+            try {
+                used = store.hasTransaction(key);
+            } catch (StorageException e) {
+                // The store still skips the transaction when saving if it was made before
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                used = false;
+            }
+        }
+        if (used) {
+            pendingKeys.remove(key);
+        }
+        return !used;
+    }
+
+    /**
+     * Hash keys too long for the ledger, so they can still be stored in full.
+     */
+    private static String normaliseKey(String key) {
+        if (key.length() <= MAX_KEY_LENGTH) {
+            return key;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return "sha256:" + HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Queue a change to be saved, called while holding the player's cache entry so changes are queued in order.
+     */
+    private void recordChange(UUID playerUUID, TokenChange change) {
+        pendingChanges.compute(playerUUID, (uuid, pending) -> {
+            changedSinceCallback.add(uuid);
+            return pending == null ? change : pending.then(change);
+        });
+
+        // Don't let a burst of changes build up until the next scheduled flush
+        if (pendingChanges.size() >= flushBatchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                databaseExecutor.execute(this::flushChanges);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, closeConnection() flushes
+            }
+        }
+    }
+
+    /**
+     * Run a task once the token changes made or submitted since the previous task was queued have been saved to the database.
+     * A task only waits for the players changed in between, so a player whose changes keep failing to save
+     * doesn't hold up tasks for everyone else.
+     * The task runs on the database thread, or on the calling thread of {@link #closeConnection()}.
+     *
+     * @param task The task to run
+     */
+    public void whenPersisted(Runnable task) {
+        try {
+            // Queued behind async operations submitted before it, so their changes are included
+            databaseExecutor.execute(() -> queueCallback(task));
+        } catch (RejectedExecutionException e) {
+            queueCallback(task);
+        }
+    }
+
+    private void queueCallback(Runnable task) {
+        Set<UUID> players = new HashSet<>();
+        for (Iterator<UUID> changed = changedSinceCallback.iterator(); changed.hasNext(); ) {
+            players.add(changed.next());
+            changed.remove();
+        }
+        persistCallbacks.add(new PersistCallback(players, task));
+    }
+
+    /**
+     * Save changed tokens straight away, waiting for any async operations submitted before this call.
+     */
+    public void flush() {
+        try {
+            CompletableFuture.runAsync(this::flushChanges, databaseExecutor).join();
+        } catch (RejectedExecutionException e) {
+            flushChanges();
+        }
+    }
+
+    /**
+     * Save every changed player's tokens in a single transaction, then run the tasks waiting on them.
+     */
+    private synchronized void flushChanges() {
+        flushRequested.set(false);
+
+        // Tasks are taken before the changes, so every change made before a task was added is in this batch
+        List<PersistCallback> callbacks = new ArrayList<>();
+        PersistCallback callback;
+        while ((callback = persistCallbacks.poll()) != null) {
+            callbacks.add(callback);
+        }
+
+        // Changes stay visible in the saving batch until committed, so their players aren't evicted meanwhile
+        Map<UUID, TokenChange> batch = new ConcurrentHashMap<>();
+        savingChanges = batch;
+        for (UUID playerUUID : pendingChanges.keySet()) {
+            pendingChanges.computeIfPresent(playerUUID, (uuid, change) -> {
+                batch.put(uuid, change);
+                return null;
+            });
+        }
+
+        Set<UUID> unsaved = batch.isEmpty() ? Set.of() : saveBatch(batch);
+        flushVotes();
+        if (!pendingKeys.isEmpty()) {
+            // Saved keys are found in the store from now on
+            batch.forEach((playerUUID, change) -> {
+                if (!unsaved.contains(playerUUID)) {
+                    for (TokenTransaction transaction : change.transactions()) {
+                        if (transaction.key() != null) {
+                            pendingKeys.remove(transaction.key());
+                        }
+                    }
+                }
+            });
+        }
+        if (!unsaved.isEmpty()) {
+            // Keep them for the next attempt, ahead of anything changed since
+            for (UUID playerUUID : unsaved) {
+                pendingChanges.merge(playerUUID, batch.get(playerUUID), (newer, older) -> older.then(newer));
+            }
+            // Tasks waiting on a player that wasn't saved wait for the next attempt, the rest run now
+            for (Iterator<PersistCallback> waiting = callbacks.iterator(); waiting.hasNext(); ) {
+                PersistCallback next = waiting.next();
+                if (!Collections.disjoint(next.players(), unsaved)) {
+                    persistCallbacks.add(next);
+                    waiting.remove();
+                }
+            }
+        }
+        for (UUID playerUUID : batch.keySet()) {
+            if (!unsaved.contains(playerUUID)) {
+                // Saved and not changed since, so tasks queued later needn't wait for it
+                pendingChanges.compute(playerUUID, (uuid, pending) -> {
+                    if (pending == null) {
+                        changedSinceCallback.remove(uuid);
+                    }
+                    return pending;
+                });
+            }
+        }
+        savingChanges = Map.of();
+        releasePlayers();
+
+        for (PersistCallback ready : callbacks) {
+            try {
+                ready.task().run();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Error running task after saving tokens: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Drop the players released since the last flush from the cache, and release players pinned
+     * at pre-login who never joined. Players whose changes weren't saved stay cached until they are.
+     */
+    private void releasePlayers() {
+        long expired = System.currentTimeMillis() - JOIN_TIMEOUT_MS;
+        for (UUID playerUUID : awaitingJoin.keySet()) {
+            awaitingJoin.computeIfPresent(playerUUID, (uuid, since) -> {
+                if (since > expired) {
+                    return since;
+                }
+                cache.unpin(uuid);
+                releasedPlayers.add(uuid);
+                return null;
+            });
+        }
+
+        UUID playerUUID;
+        while ((playerUUID = releasedPlayers.poll()) != null) {
+            cache.release(playerUUID, this::isUnsaved);
+        }
+    }
+
+    /**
+     * Save the votes received since the last flush to the history, in a single transaction.
+     */
+    private synchronized void flushVotes() {
+        List<VoteRecord> votes = new ArrayList<>();
+        VoteRecord vote;
+        while ((vote = pendingVotes.poll()) != null) {
+            votes.add(vote);
+        }
+        if (votes.isEmpty()) {
+            return;
+        }
+        synchronized (databaseLock) {
+            try {
+                store.recordVotes(votes);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                recordVotesSeparately(votes);
+            }
+        }
+    }
+
+    /**
+     * Save votes one at a time after their batch failed, so one bad vote can't hold back the rest.
+     * Votes which still fail are dropped if the store is otherwise working, or kept for the next attempt if it isn't.
+     */
+    private void recordVotesSeparately(List<VoteRecord> votes) {
+        List<VoteRecord> failed = new ArrayList<>();
+        List<String> reasons = new ArrayList<>();
+        for (VoteRecord vote : votes) {
+            try {
+                store.recordVotes(List.of(vote));
+            } catch (StorageException e) {
+                failed.add(vote);
+                reasons.add(e.getMessage());
+            }
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        if (failed.size() < votes.size() || isStoreReachable()) {
+            for (int i = 0; i < failed.size(); i++) {
+                VoteRecord vote = failed.get(i);
+                plugin.getLogger().warning("Dropping vote '" + vote.key() + "' for " + vote.username() +
+                        " from the history, it could not be saved: " + reasons.get(i));
+            }
+        } else {
+            // Kept for the next attempt
+            pendingVotes.addAll(failed);
+        }
+    }
+
+    /**
+     * Check that the store can be read, to tell a bad vote apart from a database that is down.
+     */
+    private boolean isStoreReachable() {
+        try {
+            store.countVotes(new UUID(0, 0), VotePeriod.DAY, 0, 0);
+            return true;
+        } catch (StorageException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Apply a batch of changes to the store.
+     *
+     * @return The players whose changes weren't saved
+     */
+    private Set<UUID> saveBatch(Map<UUID, TokenChange> batch) {
+        synchronized (databaseLock) {
+            try {
+                return store.upsertMany(batch);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                return batch.keySet();
+            }
+        }
+    }
+
+    /**
+     * Refresh cached balances that other servers sharing the store have changed.
+     * Runs on the database thread, so no flush is in progress and every unsaved change is still pending.
+     */
+    private void pollSharedChanges() {
+        Map<UUID, Integer> changed = new HashMap<>();
+        synchronized (databaseLock) {
+            try {
+                store.pollChanges(changed::put);
+            } catch (StorageException e) {
+                plugin.getLogger().log(Level.SEVERE, e.getMessage(), e);
+                return;
+            }
+        }
+
+        changed.forEach((playerUUID, stored) -> {
+            boolean cached = cache.updateIfPresent(playerUUID, (uuid, current) -> {
+                // Keep this server's unsaved changes on top of the stored balance
+                TokenChange unsaved = pendingChanges.get(uuid);
+                int tokens;
+                if (unsaved == null) {
+                    tokens = stored;
+                } else if (unsaved.absolute()) {
+                    tokens = current;
+                } else {
+                    tokens = (int) Math.max(0, Math.min(Integer.MAX_VALUE, (long) stored + unsaved.amount()));
+                }
+                leaderboard.update(uuid, tokens);
+                return tokens;
+            });
+            if (!cached) {
+                // Only cached players can have unsaved changes
+                leaderboard.update(playerUUID, stored);
+            }
+        });
+    }
+
+    /**
+     * A task waiting for the players changed before it was queued to be saved.
+     */
+    private record PersistCallback(Set<UUID> players, Runnable task) {
     }
-} 
\ No newline at end of file
+}
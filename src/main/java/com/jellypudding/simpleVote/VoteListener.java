@@ -10,20 +10,27 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 
 /**
  * Listens for votes and rewards players with tokens
+ * Tokens are added on the database thread, and players are messaged back on the main thread.
+ * Every vote is also added to the vote history, once however many times it is delivered.
  */
 public class VoteListener implements Listener {
     private final SimpleVote plugin;
     private final TokenManager tokenManager;
     private final int tokensPerVote;
+    private final Executor mainThread;
 
     public VoteListener(SimpleVote plugin, TokenManager tokenManager, int tokensPerVote) {
         this.plugin = plugin;
         this.tokenManager = tokenManager;
         this.tokensPerVote = tokensPerVote;
+        this.mainThread = Bukkit.getScheduler().getMainThreadExecutor(plugin);
     }
 
     /**
@@ -33,6 +40,7 @@ public class VoteListener implements Listener {
     public void onVote(VoteEvent event) {
         String playerName = event.getPlayerName();
         String serviceName = event.getServiceName();
+        String transactionKey = transactionKey(event);
         
         plugin.getLogger().info("Received vote from " + playerName + " through " + serviceName);
 
@@ -44,18 +52,21 @@ public class VoteListener implements Listener {
             // Player is online
             playerUUID = player.getUniqueId();
             
-            // Add tokens
-            tokenManager.addTokens(playerUUID, tokensPerVote);
-            
-            // Notify player with proper singular/plural form
-            String tokenText = tokensPerVote == 1 ? "vote token" : "vote tokens";
-            player.sendMessage(Component.text("Thanks for voting on " + serviceName + "! You received " 
-                    + tokensPerVote + " " + tokenText + ".", NamedTextColor.GREEN));
-            
-            int totalTokens = tokenManager.getTokens(playerUUID);
-            String totalTokenText = totalTokens == 1 ? "token" : "tokens";
-            player.sendMessage(Component.text("You now have " + totalTokens + " " + totalTokenText + ".", 
-                    NamedTextColor.YELLOW));
+            // Add tokens, then notify the player back on the main thread
+            tokenManager.rewardVoteAsync(playerUUID, playerName, serviceName, event.getAddress(), tokensPerVote, transactionKey).thenAcceptAsync(totalTokens -> {
+                if (!player.isOnline()) {
+                    return;
+                }
+                
+                // Notify player with proper singular/plural form
+                String tokenText = tokensPerVote == 1 ? "vote token" : "vote tokens";
+                player.sendMessage(Component.text("Thanks for voting on " + serviceName + "! You received " 
+                        + tokensPerVote + " " + tokenText + ".", NamedTextColor.GREEN));
+                
+                String totalTokenText = totalTokens == 1 ? "token" : "tokens";
+                player.sendMessage(Component.text("You now have " + totalTokens + " " + totalTokenText + ".", 
+                        NamedTextColor.YELLOW));
+            }, mainThread).exceptionally(e -> logFailure(playerName, e));
         } else {
             // Player is offline, try to find their UUID
             try {
@@ -64,10 +75,13 @@ public class VoteListener implements Listener {
                     playerUUID = offlinePlayer.getUniqueId();
 
                     // Add tokens
-                    tokenManager.addTokens(playerUUID, tokensPerVote);
-                    plugin.getLogger().info("Added " + tokensPerVote + " tokens to offline player " + playerName);
+                    tokenManager.rewardVoteAsync(playerUUID, playerName, serviceName, event.getAddress(), tokensPerVote, transactionKey)
+                            .thenRun(() -> plugin.getLogger().info("Added " + tokensPerVote + " tokens to offline player " + playerName))
+                            .exceptionally(e -> logFailure(playerName, e));
                 } else {
                     plugin.getLogger().warning("Vote received for unknown player: " + playerName);
+                    // Still counted for the voting site
+                    tokenManager.recordVote(null, playerName, serviceName, event.getAddress(), transactionKey);
                     return;
                 }
             } catch (Exception e) {
@@ -96,4 +110,21 @@ public class VoteListener implements Listener {
         }
         
     }
+
+    /**
+     * Identify a vote in the token ledger, so a vote delivered twice only rewards once.
+     * Votes without a timestamp can't be told apart, so each gets a key of its own.
+     */
+    private static String transactionKey(VoteEvent event) {
+        String timeStamp = event.getTimeStamp();
+        if (timeStamp == null || timeStamp.isBlank()) {
+            return "vote:" + UUID.randomUUID();
+        }
+        return "vote:" + event.getServiceName() + ":" + event.getPlayerName().toLowerCase(Locale.ROOT) + ":" + timeStamp;
+    }
+
+    private Void logFailure(String playerName, Throwable e) {
+        plugin.getLogger().log(Level.SEVERE, "Could not add vote tokens for " + playerName, e);
+        return null;
+    }
 }
\ No newline at end of file
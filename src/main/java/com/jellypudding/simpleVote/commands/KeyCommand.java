@@ -37,12 +37,20 @@ public class KeyCommand implements CommandExecutor {
         sender.sendMessage(Component.text("Use this key when registering on voting sites:", NamedTextColor.GREEN));
         sender.sendMessage(Component.text(votifierManager.getRsaUtil().getV1FormattedPublicKey(), NamedTextColor.WHITE));
         
+        // Token for sites using the v2 protocol
+        sender.sendMessage(Component.empty());
+        sender.sendMessage(Component.text("Sites using Votifier v2 ask for a token instead:", NamedTextColor.GREEN));
+        sender.sendMessage(Component.text(votifierManager.getDefaultToken(), NamedTextColor.WHITE));
+        
         // Port info
         int port = plugin.getConfig().getInt("votifier.port", 8192);
         sender.sendMessage(Component.empty());
         sender.sendMessage(Component.text("Server Information:", NamedTextColor.YELLOW));
         sender.sendMessage(Component.text("Port: ", NamedTextColor.GREEN).append(Component.text(port, NamedTextColor.WHITE)));
         sender.sendMessage(Component.text("Make sure this port is open and forwarded to your server.", NamedTextColor.GREEN));
+        sender.sendMessage(Component.text("Connections: ", NamedTextColor.GREEN)
+                .append(Component.text(votifierManager.getAdmittedConnections() + " admitted, "
+                        + votifierManager.getRefusedConnections() + " refused", NamedTextColor.WHITE)));
         
         return true;
     }
@@ -1,5 +1,6 @@
 package com.jellypudding.simpleVote.commands;
 
+import com.jellypudding.simpleVote.Leaderboard;
 import com.jellypudding.simpleVote.SimpleVote;
 import com.jellypudding.simpleVote.TokenManager;
 import net.kyori.adventure.text.Component;
@@ -12,14 +13,25 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 
 public class TokenCommand implements CommandExecutor {
+    // Players listed per page of /tokens top
+    static final int TOP_PAGE_SIZE = 10;
+
+    private final SimpleVote plugin;
     private final TokenManager tokenManager;
+    // Token operations complete on the database thread, replies are sent from the main thread
+    private final Executor mainThread;
 
     public TokenCommand(SimpleVote plugin, TokenManager tokenManager) {
+        this.plugin = plugin;
         this.tokenManager = tokenManager;
+        this.mainThread = Bukkit.getScheduler().getMainThreadExecutor(plugin);
     }
 
     @Override
@@ -32,17 +44,39 @@ public class TokenCommand implements CommandExecutor {
             }
 
             if (sender instanceof Player player) {
-                int tokens = tokenManager.getTokens(player.getUniqueId());
-                String tokenText = tokens == 1 ? " vote token." : " vote tokens.";
-                player.sendMessage(Component.text("You have ")
-                        .color(NamedTextColor.GREEN)
-                        .append(Component.text(tokens).color(NamedTextColor.GOLD))
-                        .append(Component.text(tokenText).color(NamedTextColor.GREEN)));
+                tokenManager.getTokensAsync(player.getUniqueId()).thenAcceptAsync(tokens -> {
+                    String tokenText = tokens == 1 ? " vote token." : " vote tokens.";
+                    player.sendMessage(Component.text("You have ")
+                            .color(NamedTextColor.GREEN)
+                            .append(Component.text(tokens).color(NamedTextColor.GOLD))
+                            .append(Component.text(tokenText).color(NamedTextColor.GREEN)));
+                }, mainThread).exceptionally(e -> reportFailure(sender, e));
                 return true;
             } else {
                 sender.sendMessage(Component.text("Only players can check their own tokens.", NamedTextColor.RED));
                 return false;
             }
+        } else if (args.length <= 2 && args[0].equalsIgnoreCase("top")) {
+            // Leaderboard
+            if (!sender.hasPermission("simplevote.tokens")) {
+                sender.sendMessage(Component.text("You don't have permission to check tokens.", NamedTextColor.RED));
+                return true;
+            }
+
+            int page = 1;
+            if (args.length == 2) {
+                try {
+                    page = Integer.parseInt(args[1]);
+                } catch (NumberFormatException e) {
+                    page = 0;
+                }
+                if (page < 1) {
+                    sender.sendMessage(Component.text("Invalid page: " + args[1], NamedTextColor.RED));
+                    return false;
+                }
+            }
+            showLeaderboard(sender, page);
+            return true;
         } else if (args.length == 1) {
             // Check another player's tokens
             if (!sender.hasPermission("simplevote.tokens.others")) {
@@ -58,13 +92,14 @@ public class TokenCommand implements CommandExecutor {
                 return false;
             }
             
-            int tokens = tokenManager.getTokens(targetPlayer.getUniqueId());
-            String tokenText = tokens == 1 ? " vote token." : " vote tokens.";
-            sender.sendMessage(Component.text(Objects.requireNonNull(targetPlayer.getName()))
-                    .color(NamedTextColor.GOLD)
-                    .append(Component.text(" has ").color(NamedTextColor.GREEN))
-                    .append(Component.text(tokens).color(NamedTextColor.GOLD))
-                    .append(Component.text(tokenText).color(NamedTextColor.GREEN)));
+            tokenManager.getTokensAsync(targetPlayer.getUniqueId()).thenAcceptAsync(tokens -> {
+                String tokenText = tokens == 1 ? " vote token." : " vote tokens.";
+                sender.sendMessage(Component.text(Objects.requireNonNull(targetPlayer.getName()))
+                        .color(NamedTextColor.GOLD)
+                        .append(Component.text(" has ").color(NamedTextColor.GREEN))
+                        .append(Component.text(tokens).color(NamedTextColor.GOLD))
+                        .append(Component.text(tokenText).color(NamedTextColor.GREEN)));
+            }, mainThread).exceptionally(e -> reportFailure(sender, e));
             return true;
         } else if (args.length == 3) {
             // Admin commands: give, take, set
@@ -95,34 +130,40 @@ public class TokenCommand implements CommandExecutor {
             }
             
             UUID targetUUID = targetPlayer.getUniqueId();
+            // Records who ran the command in the token ledger
+            String transactionKey = "admin:" + sender.getName() + ":" + UUID.randomUUID();
             
             switch (action) {
                 case "give":
-                    tokenManager.addTokens(targetUUID, amount);
-                    sender.sendMessage(Component.text("Gave ")
-                            .color(NamedTextColor.GREEN)
-                            .append(Component.text(amount).color(NamedTextColor.GOLD))
-                            .append(Component.text(" tokens to ").color(NamedTextColor.GREEN))
-                            .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD)));
+                    tokenManager.addTokensAsync(targetUUID, amount, transactionKey).thenAcceptAsync(tokens ->
+                            sender.sendMessage(Component.text("Gave ")
+                                    .color(NamedTextColor.GREEN)
+                                    .append(Component.text(amount).color(NamedTextColor.GOLD))
+                                    .append(Component.text(" tokens to ").color(NamedTextColor.GREEN))
+                                    .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD))),
+                            mainThread).exceptionally(e -> reportFailure(sender, e));
                     break;
                 case "take":
-                    if (tokenManager.removeTokens(targetUUID, amount)) {
-                        sender.sendMessage(Component.text("Took ")
-                                .color(NamedTextColor.GREEN)
-                                .append(Component.text(amount).color(NamedTextColor.GOLD))
-                                .append(Component.text(" tokens from ").color(NamedTextColor.GREEN))
-                                .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD)));
-                    } else {
-                        sender.sendMessage(Component.text(targetPlayer.getName() + " doesn't have enough tokens.", NamedTextColor.RED));
-                    }
+                    tokenManager.removeTokensAsync(targetUUID, amount, transactionKey).thenAcceptAsync(removed -> {
+                        if (removed) {
+                            sender.sendMessage(Component.text("Took ")
+                                    .color(NamedTextColor.GREEN)
+                                    .append(Component.text(amount).color(NamedTextColor.GOLD))
+                                    .append(Component.text(" tokens from ").color(NamedTextColor.GREEN))
+                                    .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD)));
+                        } else {
+                            sender.sendMessage(Component.text(targetPlayer.getName() + " doesn't have enough tokens.", NamedTextColor.RED));
+                        }
+                    }, mainThread).exceptionally(e -> reportFailure(sender, e));
                     break;
                 case "set":
-                    tokenManager.setTokens(targetUUID, amount);
-                    sender.sendMessage(Component.text("Set ")
-                            .color(NamedTextColor.GREEN)
-                            .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD))
-                            .append(Component.text("'s tokens to ").color(NamedTextColor.GREEN))
-                            .append(Component.text(amount).color(NamedTextColor.GOLD)));
+                    tokenManager.setTokensAsync(targetUUID, amount, transactionKey).thenRunAsync(() ->
+                            sender.sendMessage(Component.text("Set ")
+                                    .color(NamedTextColor.GREEN)
+                                    .append(Component.text(Objects.requireNonNull(targetPlayer.getName())).color(NamedTextColor.GOLD))
+                                    .append(Component.text("'s tokens to ").color(NamedTextColor.GREEN))
+                                    .append(Component.text(amount).color(NamedTextColor.GOLD))),
+                            mainThread).exceptionally(e -> reportFailure(sender, e));
                     break;
                 default:
                     sender.sendMessage(Component.text("Unknown action: " + action, NamedTextColor.RED));
@@ -143,6 +184,10 @@ public class TokenCommand implements CommandExecutor {
                     .color(NamedTextColor.GREEN)
                     .append(Component.text(" - Check another player's tokens", NamedTextColor.WHITE)));
             
+            sender.sendMessage(Component.text("/" + label + " top [page]")
+                    .color(NamedTextColor.GREEN)
+                    .append(Component.text(" - Show the players with the most tokens", NamedTextColor.WHITE)));
+            
             sender.sendMessage(Component.text("/" + label + " give <player> <amount>")
                     .color(NamedTextColor.GREEN)
                     .append(Component.text(" - Give tokens", NamedTextColor.WHITE)));
@@ -156,8 +201,59 @@ public class TokenCommand implements CommandExecutor {
                     .append(Component.text(" - Set tokens", NamedTextColor.WHITE)));
         } else {
             sender.sendMessage(Component.text("Usage: /" + label + " - Check your vote token balance", NamedTextColor.GREEN));
+            sender.sendMessage(Component.text("Usage: /" + label + " top [page] - Show the players with the most tokens", NamedTextColor.GREEN));
         }
 
         return true;
     }
+
+    /**
+     * List a page of the leaderboard, which is kept in memory so this doesn't touch the database.
+     */
+    private void showLeaderboard(CommandSender sender, int page) {
+        Leaderboard leaderboard = tokenManager.getLeaderboard();
+        if (!leaderboard.isLoaded()) {
+            sender.sendMessage(Component.text("The leaderboard is still loading, try again shortly.", NamedTextColor.RED));
+            return;
+        }
+
+        int pages = Math.max(1, (leaderboard.size() + TOP_PAGE_SIZE - 1) / TOP_PAGE_SIZE);
+        if (page > pages) {
+            sender.sendMessage(Component.text("There " + (pages == 1 ? "is only 1 page." : "are only " + pages + " pages."), NamedTextColor.RED));
+            return;
+        }
+
+        List<Leaderboard.Entry> entries = leaderboard.getTop((page - 1) * TOP_PAGE_SIZE, TOP_PAGE_SIZE);
+        if (entries.isEmpty()) {
+            sender.sendMessage(Component.text("Nobody has any vote tokens yet.", NamedTextColor.YELLOW));
+            return;
+        }
+
+        sender.sendMessage(Component.text("=== Top Voters (page " + page + " of " + pages + ") ===", NamedTextColor.YELLOW));
+        for (Leaderboard.Entry entry : entries) {
+            String name = Bukkit.getOfflinePlayer(entry.playerUUID()).getName();
+            sender.sendMessage(Component.text(entry.rank() + ". ")
+                    .color(NamedTextColor.GREEN)
+                    .append(Component.text(name != null ? name : entry.playerUUID().toString()).color(NamedTextColor.GOLD))
+                    .append(Component.text(" - ").color(NamedTextColor.GREEN))
+                    .append(Component.text(entry.tokens()).color(NamedTextColor.GOLD))
+                    .append(Component.text(entry.tokens() == 1 ? " token" : " tokens").color(NamedTextColor.GREEN)));
+        }
+
+        if (sender instanceof Player player) {
+            int rank = leaderboard.getRank(player.getUniqueId());
+            if (rank > 0) {
+                sender.sendMessage(Component.text("You are ranked ")
+                        .color(NamedTextColor.GREEN)
+                        .append(Component.text("#" + rank).color(NamedTextColor.GOLD))
+                        .append(Component.text(" of " + leaderboard.size() + ".").color(NamedTextColor.GREEN)));
+            }
+        }
+    }
+
+    private Void reportFailure(CommandSender sender, Throwable e) {
+        plugin.getLogger().log(Level.SEVERE, "Token command failed: " + e.getMessage(), e);
+        mainThread.execute(() -> sender.sendMessage(Component.text("Something went wrong, please try again.", NamedTextColor.RED)));
+        return null;
+    }
 }
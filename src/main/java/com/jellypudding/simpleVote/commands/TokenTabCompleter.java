@@ -1,5 +1,6 @@
 package com.jellypudding.simpleVote.commands;
 
+import com.jellypudding.simpleVote.TokenManager;
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -13,7 +14,15 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 public class TokenTabCompleter implements TabCompleter {
+    // Leaderboard pages suggested after /tokens top
+    private static final int MAX_PAGE_COMPLETIONS = 9;
+
     private final List<String> adminSubcommands = Arrays.asList("give", "take", "set");
+    private final TokenManager tokenManager;
+
+    public TokenTabCompleter(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
 
     @Override
     public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, String[] args) {
@@ -25,14 +34,22 @@ public class TokenTabCompleter implements TabCompleter {
                     .map(Player::getName)
                     .toList();
             
+            if (sender.hasPermission("simplevote.tokens")) {
+                completions.add("top");
+            }
             if (sender.hasPermission("simplevote.admin")) {
                 completions.addAll(adminSubcommands);
             }
             
             completions.addAll(players);
         } else if (args.length == 2) {
-            // Second argument - player name for admin commands
-            if (sender.hasPermission("simplevote.admin") && adminSubcommands.contains(args[0].toLowerCase())) {
+            // Second argument - page of the leaderboard, or player name for admin commands
+            if (args[0].equalsIgnoreCase("top") && sender.hasPermission("simplevote.tokens")) {
+                int pages = (tokenManager.getLeaderboard().size() + TokenCommand.TOP_PAGE_SIZE - 1) / TokenCommand.TOP_PAGE_SIZE;
+                for (int page = 1; page <= Math.min(pages, MAX_PAGE_COMPLETIONS); page++) {
+                    completions.add(String.valueOf(page));
+                }
+            } else if (sender.hasPermission("simplevote.admin") && adminSubcommands.contains(args[0].toLowerCase())) {
                 completions.addAll(Bukkit.getOnlinePlayers().stream()
                         .map(Player::getName)
                         .toList());
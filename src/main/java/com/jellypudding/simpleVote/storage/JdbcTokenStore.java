@@ -0,0 +1,311 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token store in a MySQL or MariaDB database, reached through any JDBC URL whose driver is available.
+ * Only uses SQL both accept. The connection is checked after it was idle or an operation
+ * failed, and reopened if the database dropped it.
+ *
+ * The table can be shared by several servers. Each row carries a version which every write
+ * increments, and writes are compare-and-set on it: a server reads the balance, works out the
+ * new one and only writes it if nobody else wrote in between, otherwise it reads again and
+ * retries. Rows also record when they were last written, which other servers poll to refresh
+ * the balances they have cached.
+ *
+ * The ledger and its snapshots are kept in the tables named after the balance table with
+ * _transactions and _snapshots added, and votes and their counts in those with _votes,
+ * _player_votes and _service_votes added.
+ */
+public class JdbcTokenStore extends SqlTokenStore {
+    // Seconds to wait when checking the connection is still alive
+    private static final int VALIDATION_TIMEOUT = 2;
+    // Attempts at a compare-and-set before leaving a change for the next flush
+    private static final int MAX_ATTEMPTS = 5;
+    // Polls look back this far, since a write stamped before the last poll may commit after it
+    private static final long POLL_OVERLAP_MILLIS = 5000;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    // Database time of the newest change seen by pollChanges
+    private Timestamp pollSince;
+
+    /**
+     * @param table Table the balances are kept in, created if it doesn't exist
+     */
+    public JdbcTokenStore(String url, String username, String password, String table, Logger logger) {
+        super(logger, table, table + "_transactions", table + "_snapshots",
+                table + "_votes", table + "_player_votes", table + "_service_votes");
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    protected Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    @Override
+    protected void createSchema(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                    "uuid BINARY(16) NOT NULL PRIMARY KEY, " +
+                    "tokens INT NOT NULL DEFAULT 0, " +
+                    "version BIGINT NOT NULL DEFAULT 0, " +
+                    "updated_at TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3), " +
+                    "INDEX " + table + "_updated (updated_at))");
+            try {
+                statement.executeQuery("SELECT version, updated_at FROM " + table + " WHERE 1 = 0").close();
+            } catch (SQLException e) {
+                // Table from before writes were compare-and-set
+                statement.execute("ALTER TABLE " + table + " ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+                statement.execute("ALTER TABLE " + table + " ADD COLUMN updated_at TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)");
+                statement.execute("CREATE INDEX " + table + "_updated ON " + table + " (updated_at)");
+                logger.info("Added version columns to token database table '" + table + "'.");
+            }
+            // Keys are limited to 191 characters, the longest a utf8mb4 column can be and stay unique
+            statement.execute("CREATE TABLE IF NOT EXISTS " + transactionTable + " (" +
+                    "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                    "uuid BINARY(16) NOT NULL, " +
+                    "amount INT NOT NULL, " +
+                    "idempotency_key VARCHAR(191) NULL, " +
+                    "created_at BIGINT NOT NULL, " +
+                    "UNIQUE INDEX " + transactionTable + "_key (idempotency_key), " +
+                    "INDEX " + transactionTable + "_created (created_at))");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + snapshotTable + " (" +
+                    "uuid BINARY(16) NOT NULL PRIMARY KEY, " +
+                    "tokens BIGINT NOT NULL, " +
+                    "last_transaction_id BIGINT NOT NULL)");
+            // Text is cut to fit by TokenManager before it's saved
+            statement.execute("CREATE TABLE IF NOT EXISTS " + voteTable + " (" +
+                    "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                    "uuid BINARY(16) NULL, " +
+                    "username VARCHAR(64) NOT NULL, " +
+                    "service VARCHAR(191) NOT NULL, " +
+                    "address VARCHAR(64) NULL, " +
+                    "voted_at BIGINT NOT NULL, " +
+                    "idempotency_key VARCHAR(191) NULL, " +
+                    "UNIQUE INDEX " + voteTable + "_key (idempotency_key), " +
+                    "INDEX " + voteTable + "_voted (voted_at))");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + playerVoteTable + " (" +
+                    "uuid BINARY(16) NOT NULL, " +
+                    "period_type INT NOT NULL, " +
+                    "bucket INT NOT NULL, " +
+                    "votes INT NOT NULL, " +
+                    "PRIMARY KEY (uuid, period_type, bucket))");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + serviceVoteTable + " (" +
+                    "service VARCHAR(191) NOT NULL, " +
+                    "period_type INT NOT NULL, " +
+                    "bucket INT NOT NULL, " +
+                    "votes INT NOT NULL, " +
+                    "PRIMARY KEY (period_type, bucket, service))");
+
+            if (pollSince == null) {
+                // Only changes made from now on need refreshing, anything older is loaded fresh
+                try (ResultSet rs = statement.executeQuery("SELECT CURRENT_TIMESTAMP(3)")) {
+                    rs.next();
+                    pollSince = rs.getTimestamp(1);
+                }
+            }
+        }
+        logger.info("Connected to token database table '" + table + "'.");
+    }
+
+    @Override
+    protected String insertIgnore() {
+        return "INSERT IGNORE";
+    }
+
+    @Override
+    protected String snapshotUpsert() {
+        return "INSERT INTO " + snapshotTable + " (uuid, tokens, last_transaction_id) VALUES (?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE tokens = tokens + VALUES(tokens), last_transaction_id = VALUES(last_transaction_id)";
+    }
+
+    @Override
+    protected String voteCountUpsert(String countTable, String keyColumn) {
+        return "INSERT INTO " + countTable + " (" + keyColumn + ", period_type, bucket, votes) VALUES (?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE votes = votes + VALUES(votes)";
+    }
+
+    @Override
+    protected boolean isUsable(Connection connection) throws SQLException {
+        return connection.isValid(VALIDATION_TIMEOUT);
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Each change is applied to the balance read from the database with a compare-and-set on the
+     * row's version. A player whose row keeps changing under it is retried a few times, then left
+     * for the next flush. The ledger rows of the players saved are written in the same
+     * transaction, and a balance that included a transaction the ledger already had is corrected
+     * while its row is still locked.
+     */
+    @Override
+    public Set<UUID> upsertMany(Map<UUID, TokenChange> changes) throws StorageException {
+        Map<UUID, TokenChange> remaining = new HashMap<>(changes);
+        try {
+            Connection connection = connection();
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && !remaining.isEmpty(); attempt++) {
+                Map<UUID, long[]> rows = loadRows(connection, new ArrayList<>(remaining.keySet()));
+
+                connection.setAutoCommit(false);
+                try (PreparedStatement update = connection.prepareStatement("UPDATE " + table + " SET tokens = ?, " +
+                             "version = version + 1, updated_at = CURRENT_TIMESTAMP(3) WHERE uuid = ? AND version = ?");
+                     PreparedStatement insert = connection.prepareStatement("INSERT IGNORE INTO " + table + " " +
+                             "(uuid, tokens, version, updated_at) VALUES (?, ?, 1, CURRENT_TIMESTAMP(3))");
+                     PreparedStatement transactions = prepareTransactionInsert(connection)) {
+                    Map<UUID, TokenChange> saved = new HashMap<>();
+                    for (Map.Entry<UUID, TokenChange> entry : remaining.entrySet()) {
+                        UUID playerUUID = entry.getKey();
+                        long[] row = rows.get(playerUUID);
+                        int tokens = apply(playerUUID, row != null ? (int) row[0] : 0, entry.getValue());
+
+                        // No row changed means another server wrote first, or inserted the row first
+                        int changed;
+                        if (row != null) {
+                            update.setInt(1, tokens);
+                            update.setBytes(2, toBytes(playerUUID));
+                            update.setLong(3, row[1]);
+                            changed = update.executeUpdate();
+                        } else {
+                            insert.setBytes(1, toBytes(playerUUID));
+                            insert.setInt(2, tokens);
+                            changed = insert.executeUpdate();
+                        }
+                        if (changed > 0) {
+                            saved.put(playerUUID, entry.getValue());
+                        }
+                    }
+
+                    Map<UUID, TokenChange> recorded = recordTransactions(transactions, saved);
+                    if (recorded != saved) {
+                        try (PreparedStatement correct = connection.prepareStatement("UPDATE " + table + " SET tokens = ? WHERE uuid = ?")) {
+                            for (Map.Entry<UUID, TokenChange> entry : saved.entrySet()) {
+                                TokenChange change = recorded.get(entry.getKey());
+                                if (change != entry.getValue()) {
+                                    // Nothing left of the change means the balance goes back to what it was
+                                    long[] row = rows.get(entry.getKey());
+                                    int stored = row != null ? (int) row[0] : 0;
+                                    correct.setInt(1, change != null ? apply(entry.getKey(), stored, change) : stored);
+                                    correct.setBytes(2, toBytes(entry.getKey()));
+                                    correct.executeUpdate();
+                                }
+                            }
+                        }
+                    }
+                    connection.commit();
+                    saved.keySet().forEach(remaining::remove);
+                } catch (SQLException e) {
+                    try {
+                        connection.rollback();
+                    } catch (SQLException rollbackEx) {
+                        // Ignore
+                    }
+                    throw e;
+                } finally {
+                    try {
+                        connection.setAutoCommit(true);
+                    } catch (SQLException e) {
+                        // Ignore
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            StorageException failure = failure("Could not save tokens for " + remaining.size() + " players: " + e.getMessage(), e);
+            if (remaining.size() == changes.size()) {
+                throw failure;
+            }
+            // Earlier attempts were committed, so only what's left may be tried again
+            logger.log(Level.SEVERE, failure.getMessage(), e);
+            return remaining.keySet();
+        }
+
+        if (!remaining.isEmpty()) {
+            logger.warning("Tokens for " + remaining.size() + " players kept changing on other servers, trying again later");
+        }
+        return remaining.keySet();
+    }
+
+    @Override
+    public void pollChanges(ObjIntConsumer<UUID> consumer) throws StorageException {
+        try {
+            Connection connection = connection();
+            try (PreparedStatement select = connection.prepareStatement("SELECT uuid, tokens, updated_at FROM " + table +
+                    " WHERE updated_at >= ?")) {
+                select.setTimestamp(1, new Timestamp(pollSince.getTime() - POLL_OVERLAP_MILLIS));
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(fromBytes(rs.getBytes("uuid")), rs.getInt("tokens"));
+                        Timestamp updated = rs.getTimestamp("updated_at");
+                        if (updated.after(pollSince)) {
+                            pollSince = updated;
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw failure("Could not check for tokens changed on other servers: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the balance and version of each player that has a row.
+     */
+    private Map<UUID, long[]> loadRows(Connection connection, List<UUID> players) throws SQLException {
+        Map<UUID, long[]> rows = new HashMap<>();
+        for (int start = 0; start < players.size(); start += LOAD_CHUNK) {
+            List<UUID> chunk = players.subList(start, Math.min(players.size(), start + LOAD_CHUNK));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            try (PreparedStatement select = connection.prepareStatement("SELECT uuid, tokens, version FROM " + table
+                    + " WHERE uuid IN (" + placeholders + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    select.setBytes(i + 1, toBytes(chunk.get(i)));
+                }
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        rows.put(fromBytes(rs.getBytes("uuid")), new long[] {rs.getInt("tokens"), rs.getLong("version")});
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Work out a player's new balance from the stored one.
+     */
+    private int apply(UUID playerUUID, int stored, TokenChange change) {
+        if (change.absolute()) {
+            return change.amount();
+        }
+        if (stored + (long) change.amount() < 0) {
+            // Spent on this server while another server spent the same tokens, it can't go below zero
+            logger.warning("Stored tokens for " + playerUUID + " were lower than expected, saving 0");
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, stored + (long) change.amount());
+    }
+}
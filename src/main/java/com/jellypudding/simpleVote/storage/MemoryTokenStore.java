@@ -0,0 +1,153 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Token store kept on the heap only, so every balance is lost when the server stops.
+ * Meant for test servers and for measuring the plugin without a database.
+ * Only the idempotency keys of the ledger are kept, so retried transactions are still skipped.
+ */
+public class MemoryTokenStore implements TokenStore {
+    private record PlayerCount(UUID playerUUID, VotePeriod period, int bucket) {
+    }
+
+    private record ServiceCount(String service, VotePeriod period, int bucket) {
+    }
+
+    private final Map<UUID, Integer> balances = new HashMap<>();
+    // Idempotency keys and when their transactions were made, oldest first
+    private final Map<String, Long> transactionKeys = new LinkedHashMap<>();
+    private final Queue<VoteRecord> votes = new ArrayDeque<>();
+    private final Set<String> voteKeys = new HashSet<>();
+    private final Map<PlayerCount, Integer> playerVotes = new HashMap<>();
+    private final Map<ServiceCount, Integer> serviceVotes = new HashMap<>();
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public int load(UUID playerUUID) {
+        return balances.getOrDefault(playerUUID, ABSENT);
+    }
+
+    @Override
+    public Map<UUID, Integer> loadMany(Collection<UUID> playerUUIDs) {
+        Map<UUID, Integer> loaded = new HashMap<>();
+        for (UUID playerUUID : playerUUIDs) {
+            Integer tokens = balances.get(playerUUID);
+            if (tokens != null) {
+                loaded.put(playerUUID, tokens);
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void loadAll(ObjIntConsumer<UUID> consumer) {
+        balances.forEach(consumer::accept);
+    }
+
+    @Override
+    public Set<UUID> upsertMany(Map<UUID, TokenChange> changes) {
+        for (Map.Entry<UUID, TokenChange> entry : changes.entrySet()) {
+            TokenChange change = entry.getValue();
+            for (TokenTransaction transaction : entry.getValue().transactions()) {
+                if (transaction.key() != null && transactionKeys.putIfAbsent(transaction.key(), transaction.time()) != null) {
+                    change = change.without(transaction);
+                    if (change == null) {
+                        break;
+                    }
+                }
+            }
+            if (change == null) {
+                continue;
+            }
+            long stored = change.absolute() ? 0 : balances.getOrDefault(entry.getKey(), 0);
+            balances.put(entry.getKey(), (int) Math.max(0, Math.min(Integer.MAX_VALUE, stored + change.amount())));
+        }
+        return Set.of();
+    }
+
+    @Override
+    public boolean hasTransaction(String key) {
+        return transactionKeys.containsKey(key);
+    }
+
+    @Override
+    public int compactTransactions(long before, int limit) {
+        int removed = 0;
+        Iterator<Long> times = transactionKeys.values().iterator();
+        while (removed < limit && times.hasNext() && times.next() < before) {
+            times.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    @Override
+    public void recordVotes(List<VoteRecord> received) {
+        for (VoteRecord vote : received) {
+            if (vote.key() != null && !voteKeys.add(vote.key())) {
+                continue;
+            }
+            votes.add(vote);
+            for (VotePeriod period : VotePeriod.values()) {
+                if (vote.playerUUID() != null) {
+                    playerVotes.merge(new PlayerCount(vote.playerUUID(), period, period.of(vote.time())), 1, Integer::sum);
+                }
+                serviceVotes.merge(new ServiceCount(vote.service(), period, period.of(vote.time())), 1, Integer::sum);
+            }
+        }
+    }
+
+    @Override
+    public int countVotes(UUID playerUUID, VotePeriod period, int first, int last) {
+        int count = 0;
+        for (int bucket = first; bucket <= last; bucket++) {
+            count += playerVotes.getOrDefault(new PlayerCount(playerUUID, period, bucket), 0);
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Integer> countServiceVotes(VotePeriod period, int first, int last) {
+        Map<String, Integer> counts = new HashMap<>();
+        serviceVotes.forEach((key, count) -> {
+            if (key.period() == period && key.bucket() >= first && key.bucket() <= last) {
+                counts.merge(key.service(), count, Integer::sum);
+            }
+        });
+        return counts;
+    }
+
+    @Override
+    public int pruneVotes(long before, int limit) {
+        int removed = 0;
+        while (removed < limit && !votes.isEmpty() && votes.peek().time() < before) {
+            voteKeys.remove(votes.poll().key());
+            removed++;
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() {
+        balances.clear();
+        transactionKeys.clear();
+        votes.clear();
+        playerVotes.clear();
+        serviceVotes.clear();
+    }
+}
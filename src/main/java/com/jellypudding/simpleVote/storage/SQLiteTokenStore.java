@@ -0,0 +1,347 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Token store in a local SQLite file.
+ * The database runs in WAL mode with synchronous=NORMAL, so a commit only appends to the
+ * write-ahead log instead of syncing the whole database, and reads go through a memory map.
+ * A crash of the server loses nothing; a power cut may lose the last moments of changes.
+ * The ledger is kept in token_transactions and its snapshots in token_snapshots, and votes in
+ * vote_history with their counts in player_vote_counts and service_vote_counts.
+ *
+ * Databases from older versions are copied over from the text keyed table in the background,
+ * see {@link SchemaMigrations}.
+ */
+public class SQLiteTokenStore extends SqlTokenStore {
+    private static final long MMAP_SIZE = 256L * 1024 * 1024;
+    // Rows copied from the old table per transaction
+    private static final int LEGACY_COPY_CHUNK = 5000;
+
+    private final File file;
+    private PreparedStatement addStatement;
+    private PreparedStatement removeStatement;
+    private PreparedStatement setStatement;
+    private PreparedStatement transactionStatement;
+    // Whether the old text keyed table still has rows to copy
+    private boolean legacyTablePresent;
+    private long legacyLastRowId;
+    private int legacyCopied;
+    private int legacyTotal = -1;
+
+    public SQLiteTokenStore(File file, Logger logger) {
+        super(logger, "player_balances", "token_transactions", "token_snapshots",
+                "vote_history", "player_vote_counts", "service_vote_counts");
+        this.file = file;
+    }
+
+    @Override
+    protected Connection connect() throws SQLException {
+        try {
+            // Load the SQLite JDBC driver
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found. Make sure it's included in your plugin JAR.", e);
+        }
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    protected void createSchema(Connection connection) throws SQLException {
+        int version = SchemaMigrations.migrate(connection, logger);
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'player_tokens'")) {
+            legacyTablePresent = rs.next();
+        }
+        logger.info("Database initialised successfully at schema version " + version + ".");
+    }
+
+    @Override
+    protected String insertIgnore() {
+        return "INSERT OR IGNORE";
+    }
+
+    @Override
+    protected String snapshotUpsert() {
+        return "INSERT INTO token_snapshots (uuid, tokens, last_transaction_id) VALUES (?, ?, ?) " +
+                "ON CONFLICT(uuid) DO UPDATE SET tokens = tokens + excluded.tokens, last_transaction_id = excluded.last_transaction_id";
+    }
+
+    @Override
+    protected String voteCountUpsert(String countTable, String keyColumn) {
+        return "INSERT INTO " + countTable + " (" + keyColumn + ", period_type, bucket, votes) VALUES (?, ?, ?, ?) " +
+                "ON CONFLICT(" + keyColumn + ", period_type, bucket) DO UPDATE SET votes = votes + excluded.votes";
+    }
+
+    @Override
+    protected void closeStatements() throws SQLException {
+        for (PreparedStatement statement : new PreparedStatement[] {addStatement, removeStatement, setStatement, transactionStatement}) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        addStatement = null;
+        removeStatement = null;
+        setStatement = null;
+        transactionStatement = null;
+    }
+
+    /**
+     * Net amounts are added with an upsert and removals only apply if the stored total covers them,
+     * so every change is saved in one pass. The ledger rows go first, so changes already saved
+     * are known before the balances are updated.
+     */
+    @Override
+    public Set<UUID> upsertMany(Map<UUID, TokenChange> changes) throws StorageException {
+        try {
+            Connection connection = connection();
+            if (addStatement == null) {
+                addStatement = connection.prepareStatement("INSERT INTO player_balances (uuid, tokens) VALUES (?, ?) " +
+                        "ON CONFLICT(uuid) DO UPDATE SET tokens = tokens + excluded.tokens");
+                removeStatement = connection.prepareStatement("UPDATE player_balances SET tokens = tokens - ? " +
+                        "WHERE uuid = ? AND tokens >= ?");
+                setStatement = connection.prepareStatement("INSERT OR REPLACE INTO player_balances (uuid, tokens) VALUES (?, ?)");
+                transactionStatement = prepareTransactionInsert(connection);
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                List<UUID> removals = new ArrayList<>();
+                for (Map.Entry<UUID, TokenChange> entry : recordTransactions(transactionStatement, changes).entrySet()) {
+                    byte[] uuid = toBytes(entry.getKey());
+                    TokenChange change = entry.getValue();
+                    if (change.absolute()) {
+                        setStatement.setBytes(1, uuid);
+                        setStatement.setInt(2, change.amount());
+                        setStatement.addBatch();
+                    } else if (change.amount() >= 0) {
+                        addStatement.setBytes(1, uuid);
+                        addStatement.setInt(2, change.amount());
+                        addStatement.addBatch();
+                    } else {
+                        removeStatement.setInt(1, -change.amount());
+                        removeStatement.setBytes(2, uuid);
+                        removeStatement.setInt(3, -change.amount());
+                        removeStatement.addBatch();
+                        removals.add(entry.getKey());
+                    }
+                }
+                setStatement.executeBatch();
+                addStatement.executeBatch();
+                int[] removed = removeStatement.executeBatch();
+
+                // The database had fewer tokens than the cache, it can't go below zero
+                for (int i = 0; i < removed.length; i++) {
+                    if (removed[i] == 0) {
+                        UUID playerUUID = removals.get(i);
+                        logger.warning("Stored tokens for " + playerUUID + " were lower than expected, saving 0");
+                        setStatement.setBytes(1, toBytes(playerUUID));
+                        setStatement.setInt(2, 0);
+                        setStatement.addBatch();
+                    }
+                }
+                setStatement.executeBatch();
+
+                connection.commit();
+                return Set.of();
+            } catch (SQLException e) {
+                try {
+                    // Don't leave half of this batch queued for the next attempt
+                    transactionStatement.clearBatch();
+                    addStatement.clearBatch();
+                    removeStatement.clearBatch();
+                    setStatement.clearBatch();
+                    connection.rollback();
+                } catch (SQLException rollbackEx) {
+                    // Ignore
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    // Ignore
+                }
+            }
+        } catch (SQLException e) {
+            throw failure("Could not save tokens for " + changes.size() + " players: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int load(UUID playerUUID) throws StorageException {
+        int tokens = super.load(playerUUID);
+        if (tokens == ABSENT && legacyTablePresent) {
+            tokens = importLegacyTokens(playerUUID);
+        }
+        return tokens;
+    }
+
+    @Override
+    public Map<UUID, Integer> loadMany(Collection<UUID> playerUUIDs) throws StorageException {
+        Map<UUID, Integer> balances = super.loadMany(playerUUIDs);
+        if (legacyTablePresent) {
+            for (UUID playerUUID : playerUUIDs) {
+                if (!balances.containsKey(playerUUID)) {
+                    int tokens = importLegacyTokens(playerUUID);
+                    if (tokens != ABSENT) {
+                        balances.put(playerUUID, tokens);
+                    }
+                }
+            }
+        }
+        return balances;
+    }
+
+    /**
+     * Copy a player's row from the old table ahead of the background copy, so the changes saved for
+     * them apply to the stored amount.
+     *
+     * @return The player's stored tokens, or {@link #ABSENT} if the old table has no row for them
+     */
+    private int importLegacyTokens(UUID playerUUID) throws StorageException {
+        try {
+            Connection connection = connection();
+            int tokens;
+            try (PreparedStatement select = connection.prepareStatement("SELECT tokens FROM player_tokens WHERE uuid = ?")) {
+                select.setString(1, playerUUID.toString());
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return ABSENT;
+                    }
+                    tokens = Math.max(0, rs.getInt("tokens"));
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO player_balances (uuid, tokens) VALUES (?, ?)")) {
+                insert.setBytes(1, toBytes(playerUUID));
+                insert.setInt(2, tokens);
+                insert.executeUpdate();
+            }
+            return tokens;
+        } catch (SQLException e) {
+            throw failure("Could not load tokens for player " + playerUUID + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copy the next chunk of the old table into player_balances.
+     * Each chunk is its own transaction, so loads and saves only ever wait for one chunk. Rows
+     * already in player_balances are newer and kept, so an interrupted copy just starts again on
+     * the next start. The old table is dropped along with the last chunk.
+     */
+    @Override
+    public boolean runMaintenanceStep() throws StorageException {
+        if (!legacyTablePresent) {
+            return false;
+        }
+
+        int rows = 0;
+        try {
+            Connection connection = connection();
+            if (legacyTotal < 0) {
+                try (Statement statement = connection.createStatement();
+                     ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM player_tokens")) {
+                    legacyTotal = rs.next() ? rs.getInt(1) : 0;
+                }
+                if (legacyTotal > 0) {
+                    logger.info("Moving " + legacyTotal + " token balances to the new table in the background");
+                }
+            }
+
+            long lastRowId = legacyLastRowId;
+            boolean finished;
+            connection.setAutoCommit(false);
+            try (PreparedStatement select = connection.prepareStatement("SELECT rowid, uuid, tokens FROM player_tokens " +
+                         "WHERE rowid > ? ORDER BY rowid LIMIT ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO player_balances (uuid, tokens) VALUES (?, ?)")) {
+                select.setLong(1, legacyLastRowId);
+                select.setInt(2, LEGACY_COPY_CHUNK);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastRowId = rs.getLong(1);
+                        rows++;
+                        UUID playerUUID = parseUUID(rs.getString(2));
+                        if (playerUUID == null) {
+                            logger.warning("Skipping tokens stored under invalid UUID '" + rs.getString(2) + "'");
+                            continue;
+                        }
+                        insert.setBytes(1, toBytes(playerUUID));
+                        insert.setInt(2, Math.max(0, rs.getInt(3)));
+                        insert.addBatch();
+                    }
+                }
+                insert.executeBatch();
+
+                finished = rows < LEGACY_COPY_CHUNK;
+                if (finished) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("DROP TABLE player_tokens");
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackEx) {
+                    // Ignore
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    // Ignore
+                }
+            }
+            legacyLastRowId = lastRowId;
+            legacyTablePresent = !finished;
+        } catch (SQLException e) {
+            throw failure("Could not move token balances to the new table, will retry on the next start: " + e.getMessage(), e);
+        }
+
+        int copied = legacyCopied;
+        legacyCopied += rows;
+        if (!legacyTablePresent) {
+            if (legacyCopied > 0) {
+                logger.info("Finished moving " + legacyCopied + " token balances to the new table");
+            }
+            return false;
+        }
+        // Log roughly every tenth of the way rather than every chunk
+        if (legacyTotal > 0 && legacyCopied * 10L / legacyTotal != copied * 10L / legacyTotal) {
+            logger.info("Moved " + legacyCopied + " of " + legacyTotal + " token balances to the new table");
+        }
+        return true;
+    }
+
+    private static UUID parseUUID(String value) {
+        try {
+            return value != null ? UUID.fromString(value) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema changes for tokens.db.
+ * The schema version is kept in SQLite's user_version. Each migration runs once, in order,
+ * in its own transaction together with the version bump.
+ */
+final class SchemaMigrations {
+    @FunctionalInterface
+    private interface Migration {
+        void apply(Statement statement) throws SQLException;
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            // 1: The original table, keyed on the UUID as text
+            statement -> statement.execute("CREATE TABLE IF NOT EXISTS player_tokens (" +
+                    "uuid TEXT PRIMARY KEY, " +
+                    "tokens INTEGER DEFAULT 0)"),
+            // 2: 16-byte UUID keys, with rows stored in the key's b-tree. Rows still in player_tokens
+            // are copied across in the background by SQLiteTokenStore, which then drops the old table.
+            statement -> statement.execute("CREATE TABLE IF NOT EXISTS player_balances (" +
+                    "uuid BLOB PRIMARY KEY, " +
+                    "tokens INTEGER NOT NULL DEFAULT 0) WITHOUT ROWID"),
+            // 3: Ledger of every transaction, and the snapshots compacted transactions are folded into
+            statement -> {
+                statement.execute("CREATE TABLE IF NOT EXISTS token_transactions (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "uuid BLOB NOT NULL, " +
+                        "amount INTEGER NOT NULL, " +
+                        "idempotency_key TEXT UNIQUE, " +
+                        "created_at INTEGER NOT NULL)");
+                statement.execute("CREATE INDEX IF NOT EXISTS token_transactions_created ON token_transactions (created_at)");
+                statement.execute("CREATE TABLE IF NOT EXISTS token_snapshots (" +
+                        "uuid BLOB PRIMARY KEY, " +
+                        "tokens INTEGER NOT NULL, " +
+                        "last_transaction_id INTEGER NOT NULL) WITHOUT ROWID");
+            },
+            // 4: History of votes received, and their counts per day and month for each player and service
+            statement -> {
+                statement.execute("CREATE TABLE IF NOT EXISTS vote_history (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "uuid BLOB, " +
+                        "username TEXT NOT NULL, " +
+                        "service TEXT NOT NULL, " +
+                        "address TEXT, " +
+                        "voted_at INTEGER NOT NULL, " +
+                        "idempotency_key TEXT UNIQUE)");
+                statement.execute("CREATE INDEX IF NOT EXISTS vote_history_voted ON vote_history (voted_at)");
+                statement.execute("CREATE TABLE IF NOT EXISTS player_vote_counts (" +
+                        "uuid BLOB NOT NULL, " +
+                        "period_type INTEGER NOT NULL, " +
+                        "bucket INTEGER NOT NULL, " +
+                        "votes INTEGER NOT NULL, " +
+                        "PRIMARY KEY (uuid, period_type, bucket)) WITHOUT ROWID");
+                statement.execute("CREATE TABLE IF NOT EXISTS service_vote_counts (" +
+                        "service TEXT NOT NULL, " +
+                        "period_type INTEGER NOT NULL, " +
+                        "bucket INTEGER NOT NULL, " +
+                        "votes INTEGER NOT NULL, " +
+                        "PRIMARY KEY (period_type, bucket, service)) WITHOUT ROWID");
+            }
+    );
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * Bring the database up to the latest schema version.
+     *
+     * @return The schema version the database is now at
+     */
+    static int migrate(Connection connection, Logger logger) throws SQLException {
+        int version = getVersion(connection);
+        if (version > MIGRATIONS.size()) {
+            throw new SQLException("tokens.db has schema version " + version + ", which is newer than this version of SimpleVote supports");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (; version < MIGRATIONS.size(); version++) {
+                MIGRATIONS.get(version).apply(statement);
+                statement.execute("PRAGMA user_version = " + (version + 1));
+                connection.commit();
+                logger.info("Updated tokens.db to schema version " + (version + 1));
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return version;
+    }
+
+    private static int getVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("PRAGMA user_version")) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token store over a single JDBC connection, with balances keyed on the UUID's 16 bytes.
+ * Subclasses supply the connection, the schema and the writes in their database's dialect.
+ *
+ * Every transaction is appended to a ledger table with its idempotency key, which is unique, so
+ * a transaction retried after it was saved can't be added twice. Compaction folds old transactions
+ * into a snapshot table holding each player's total and the last transaction it includes, so
+ * the ledger since a snapshot can be checked against the balance without reading all of it.
+ *
+ * Votes are kept in a history table, and counted per player and per service for each day and
+ * month as they are saved, so counts are read from a few rows of the rollup tables instead of
+ * the history. Old votes are pruned from the history while the counts are kept.
+ */
+abstract class SqlTokenStore implements TokenStore {
+    /**
+     * One day or month that votes are counted for.
+     */
+    private record Bucket(VotePeriod period, int number) {
+    }
+
+    // Players per query in loadMany, well under every database's parameter limit
+    static final int LOAD_CHUNK = 500;
+    // Idle time after which the connection is checked before being used
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    protected final Logger logger;
+    protected final String table;
+    protected final String transactionTable;
+    protected final String snapshotTable;
+    protected final String voteTable;
+    protected final String playerVoteTable;
+    protected final String serviceVoteTable;
+    private Connection connection;
+    private boolean closed;
+    // Set when an operation fails, so the connection is checked before it's used again
+    private boolean suspect;
+    private long lastUsed;
+
+    /**
+     * @param table Table the balances are kept in
+     * @param transactionTable Table the ledger of transactions is kept in
+     * @param snapshotTable Table compacted transactions are folded into
+     * @param voteTable Table the vote history is kept in
+     * @param playerVoteTable Table of the votes counted per player and period
+     * @param serviceVoteTable Table of the votes counted per service and period
+     */
+    protected SqlTokenStore(Logger logger, String table, String transactionTable, String snapshotTable,
+                            String voteTable, String playerVoteTable, String serviceVoteTable) {
+        this.logger = logger;
+        this.table = table;
+        this.transactionTable = transactionTable;
+        this.snapshotTable = snapshotTable;
+        this.voteTable = voteTable;
+        this.playerVoteTable = playerVoteTable;
+        this.serviceVoteTable = serviceVoteTable;
+    }
+
+    /**
+     * Open a new connection to the database.
+     */
+    protected abstract Connection connect() throws SQLException;
+
+    /**
+     * Create or update the balance table on a new connection.
+     */
+    protected abstract void createSchema(Connection connection) throws SQLException;
+
+    /**
+     * The database's INSERT that skips rows whose key is already taken.
+     */
+    protected abstract String insertIgnore();
+
+    /**
+     * The database's statement adding (uuid, tokens, last_transaction_id) to a player's snapshot,
+     * creating it if needed.
+     */
+    protected abstract String snapshotUpsert();
+
+    /**
+     * The database's statement adding (key, period_type, bucket, votes) to a vote count, creating
+     * it if needed.
+     *
+     * @param countTable Table of vote counts
+     * @param keyColumn Column the count is kept for, besides the period
+     */
+    protected abstract String voteCountUpsert(String countTable, String keyColumn);
+
+    /**
+     * Close any statements kept open on the connection, before it is closed.
+     */
+    protected void closeStatements() throws SQLException {
+    }
+
+    /**
+     * Check that an open connection still works, called after it was idle or an operation failed.
+     */
+    protected boolean isUsable(Connection connection) throws SQLException {
+        return !connection.isClosed();
+    }
+
+    @Override
+    public void open() throws StorageException {
+        try {
+            connection();
+        } catch (SQLException e) {
+            throw failure("Could not connect to the token database: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the connection, reconnecting if it was lost.
+     */
+    protected Connection connection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The token database is closed");
+        }
+        long now = System.nanoTime();
+        if (connection != null && (suspect || now - lastUsed > IDLE_CHECK_NANOS) && !isUsable(connection)) {
+            logger.warning("Lost the connection to the token database, reconnecting");
+            closeConnection();
+        }
+        if (connection == null) {
+            Connection opened = connect();
+            try {
+                createSchema(opened);
+            } catch (SQLException e) {
+                opened.close();
+                throw e;
+            }
+            connection = opened;
+        }
+        suspect = false;
+        lastUsed = now;
+        return connection;
+    }
+
+    @Override
+    public int load(UUID playerUUID) throws StorageException {
+        try (PreparedStatement select = connection().prepareStatement("SELECT tokens FROM " + table + " WHERE uuid = ?")) {
+            select.setBytes(1, toBytes(playerUUID));
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getInt("tokens") : ABSENT;
+            }
+        } catch (SQLException e) {
+            throw failure("Could not load tokens for player " + playerUUID + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<UUID, Integer> loadMany(Collection<UUID> playerUUIDs) throws StorageException {
+        Map<UUID, Integer> balances = new HashMap<>();
+        List<UUID> players = new ArrayList<>(playerUUIDs);
+        try {
+            for (int start = 0; start < players.size(); start += LOAD_CHUNK) {
+                List<UUID> chunk = players.subList(start, Math.min(players.size(), start + LOAD_CHUNK));
+                String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                try (PreparedStatement select = connection().prepareStatement("SELECT uuid, tokens FROM " + table
+                        + " WHERE uuid IN (" + placeholders + ")")) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        select.setBytes(i + 1, toBytes(chunk.get(i)));
+                    }
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            balances.put(fromBytes(rs.getBytes("uuid")), rs.getInt("tokens"));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw failure("Could not load tokens for " + playerUUIDs.size() + " players: " + e.getMessage(), e);
+        }
+        return balances;
+    }
+
+    @Override
+    public void loadAll(ObjIntConsumer<UUID> consumer) throws StorageException {
+        try (Statement statement = connection().createStatement();
+             ResultSet rs = statement.executeQuery("SELECT uuid, tokens FROM " + table)) {
+            while (rs.next()) {
+                consumer.accept(fromBytes(rs.getBytes("uuid")), rs.getInt("tokens"));
+            }
+        } catch (SQLException e) {
+            throw failure("Could not load stored tokens: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Prepare the statement {@link #recordTransactions} adds ledger rows with.
+     */
+    protected PreparedStatement prepareTransactionInsert(Connection connection) throws SQLException {
+        return connection.prepareStatement(insertIgnore() + " INTO " + transactionTable +
+                " (uuid, amount, idempotency_key, created_at) VALUES (?, ?, ?, ?)");
+    }
+
+    /**
+     * Add the transactions behind a batch of changes to the ledger, as part of the transaction
+     * saving the changes.
+     *
+     * @return The changes without any transactions the ledger already had, and without changes that had nothing else
+     */
+    protected Map<UUID, TokenChange> recordTransactions(PreparedStatement insert, Map<UUID, TokenChange> changes) throws SQLException {
+        List<UUID> players = new ArrayList<>();
+        List<TokenTransaction> transactions = new ArrayList<>();
+        for (Map.Entry<UUID, TokenChange> entry : changes.entrySet()) {
+            for (TokenTransaction transaction : entry.getValue().transactions()) {
+                insert.setBytes(1, toBytes(entry.getKey()));
+                insert.setInt(2, transaction.amount());
+                insert.setString(3, transaction.key());
+                insert.setLong(4, transaction.time());
+                insert.addBatch();
+                players.add(entry.getKey());
+                transactions.add(transaction);
+            }
+        }
+        if (transactions.isEmpty()) {
+            return changes;
+        }
+
+        int[] inserted = insert.executeBatch();
+        Map<UUID, TokenChange> recorded = changes;
+        for (int i = 0; i < inserted.length; i++) {
+            // Saved by an earlier attempt, or by another server sharing the store
+            if (inserted[i] == 0) {
+                if (recorded == changes) {
+                    recorded = new HashMap<>(changes);
+                }
+                TokenTransaction transaction = transactions.get(i);
+                logger.warning("Token transaction '" + transaction.key() + "' for " + players.get(i) + " was already saved, skipping it");
+                recorded.computeIfPresent(players.get(i), (uuid, change) -> change.without(transaction));
+            }
+        }
+        return recorded;
+    }
+
+    @Override
+    public boolean hasTransaction(String key) throws StorageException {
+        try (PreparedStatement select = connection().prepareStatement("SELECT 1 FROM " + transactionTable + " WHERE idempotency_key = ?")) {
+            select.setString(1, key);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw failure("Could not look up token transaction '" + key + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The transactions are read first, then deleted and added to the snapshots in one transaction.
+     * If fewer rows are deleted than were read, another server compacted them first or a
+     * transaction with a lower id was committed late, and the chunk is left for next time.
+     */
+    @Override
+    public int compactTransactions(long before, int limit) throws StorageException {
+        try {
+            Connection connection = connection();
+            // Per player, the sum of their transactions and the last one's id
+            Map<UUID, long[]> totals = new HashMap<>();
+            long lastId = 0;
+            int rows = 0;
+            try (PreparedStatement select = connection.prepareStatement("SELECT id, uuid, amount FROM " + transactionTable +
+                    " WHERE created_at < ? ORDER BY id LIMIT ?")) {
+                select.setLong(1, before);
+                select.setInt(2, limit);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = rs.getLong("id");
+                        rows++;
+                        long[] total = totals.computeIfAbsent(fromBytes(rs.getBytes("uuid")), uuid -> new long[2]);
+                        total[0] += rs.getInt("amount");
+                        total[1] = lastId;
+                    }
+                }
+            }
+            if (rows == 0) {
+                return 0;
+            }
+
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + transactionTable +
+                         " WHERE id <= ? AND created_at < ?");
+                 PreparedStatement upsert = connection.prepareStatement(snapshotUpsert())) {
+                delete.setLong(1, lastId);
+                delete.setLong(2, before);
+                if (delete.executeUpdate() != rows) {
+                    connection.rollback();
+                    return 0;
+                }
+                for (Map.Entry<UUID, long[]> entry : totals.entrySet()) {
+                    upsert.setBytes(1, toBytes(entry.getKey()));
+                    upsert.setLong(2, entry.getValue()[0]);
+                    upsert.setLong(3, entry.getValue()[1]);
+                    upsert.addBatch();
+                }
+                upsert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackEx) {
+                    // Ignore
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    // Ignore
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw failure("Could not compact token transactions: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The votes are added to the history and to the counts in one transaction. Votes whose key the
+     * history already has are left out, and the rest added up first, so a count gets one write
+     * however many of its votes the batch has.
+     */
+    @Override
+    public void recordVotes(List<VoteRecord> votes) throws StorageException {
+        try {
+            Connection connection = connection();
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(insertIgnore() + " INTO " + voteTable +
+                         " (uuid, username, service, address, voted_at, idempotency_key) VALUES (?, ?, ?, ?, ?, ?)");
+                 PreparedStatement playerUpsert = connection.prepareStatement(voteCountUpsert(playerVoteTable, "uuid"));
+                 PreparedStatement serviceUpsert = connection.prepareStatement(voteCountUpsert(serviceVoteTable, "service"))) {
+                for (VoteRecord vote : votes) {
+                    insert.setBytes(1, vote.playerUUID() != null ? toBytes(vote.playerUUID()) : null);
+                    insert.setString(2, vote.username());
+                    insert.setString(3, vote.service());
+                    insert.setString(4, vote.address());
+                    insert.setLong(5, vote.time());
+                    insert.setString(6, vote.key());
+                    insert.addBatch();
+                }
+                int[] inserted = insert.executeBatch();
+
+                // Votes per player or service, then per period
+                Map<UUID, Map<Bucket, Integer>> playerCounts = new HashMap<>();
+                Map<String, Map<Bucket, Integer>> serviceCounts = new HashMap<>();
+                for (int i = 0; i < inserted.length; i++) {
+                    VoteRecord vote = votes.get(i);
+                    if (inserted[i] == 0) {
+                        logger.warning("Vote '" + vote.key() + "' for " + vote.username() + " was already saved, skipping it");
+                        continue;
+                    }
+                    for (VotePeriod period : VotePeriod.values()) {
+                        Bucket bucket = new Bucket(period, period.of(vote.time()));
+                        if (vote.playerUUID() != null) {
+                            playerCounts.computeIfAbsent(vote.playerUUID(), uuid -> new HashMap<>()).merge(bucket, 1, Integer::sum);
+                        }
+                        serviceCounts.computeIfAbsent(vote.service(), service -> new HashMap<>()).merge(bucket, 1, Integer::sum);
+                    }
+                }
+
+                for (Map.Entry<UUID, Map<Bucket, Integer>> player : playerCounts.entrySet()) {
+                    for (Map.Entry<Bucket, Integer> count : player.getValue().entrySet()) {
+                        playerUpsert.setBytes(1, toBytes(player.getKey()));
+                        addVoteCount(playerUpsert, count);
+                    }
+                }
+                playerUpsert.executeBatch();
+                for (Map.Entry<String, Map<Bucket, Integer>> service : serviceCounts.entrySet()) {
+                    for (Map.Entry<Bucket, Integer> count : service.getValue().entrySet()) {
+                        serviceUpsert.setString(1, service.getKey());
+                        addVoteCount(serviceUpsert, count);
+                    }
+                }
+                serviceUpsert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackEx) {
+                    // Ignore
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    // Ignore
+                }
+            }
+        } catch (SQLException e) {
+            throw failure("Could not save " + votes.size() + " votes: " + e.getMessage(), e);
+        }
+    }
+
+    private static void addVoteCount(PreparedStatement upsert, Map.Entry<Bucket, Integer> count) throws SQLException {
+        upsert.setInt(2, count.getKey().period().id());
+        upsert.setInt(3, count.getKey().number());
+        upsert.setInt(4, count.getValue());
+        upsert.addBatch();
+    }
+
+    @Override
+    public int countVotes(UUID playerUUID, VotePeriod period, int first, int last) throws StorageException {
+        try (PreparedStatement select = connection().prepareStatement("SELECT COALESCE(SUM(votes), 0) FROM " + playerVoteTable +
+                " WHERE uuid = ? AND period_type = ? AND bucket BETWEEN ? AND ?")) {
+            select.setBytes(1, toBytes(playerUUID));
+            select.setInt(2, period.id());
+            select.setInt(3, first);
+            select.setInt(4, last);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw failure("Could not count votes for player " + playerUUID + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<String, Integer> countServiceVotes(VotePeriod period, int first, int last) throws StorageException {
+        Map<String, Integer> counts = new HashMap<>();
+        try (PreparedStatement select = connection().prepareStatement("SELECT service, SUM(votes) FROM " + serviceVoteTable +
+                " WHERE period_type = ? AND bucket BETWEEN ? AND ? GROUP BY service")) {
+            select.setInt(1, period.id());
+            select.setInt(2, first);
+            select.setInt(3, last);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(rs.getString(1), rs.getInt(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw failure("Could not count votes per service: " + e.getMessage(), e);
+        }
+        return counts;
+    }
+
+    /**
+     * Finds the id of the last vote in the chunk, then deletes up to it, so it only needs
+     * SQL that every database accepts.
+     */
+    @Override
+    public int pruneVotes(long before, int limit) throws StorageException {
+        try {
+            Connection connection = connection();
+            long lastId = 0;
+            int rows = 0;
+            try (PreparedStatement select = connection.prepareStatement("SELECT id FROM " + voteTable +
+                    " WHERE voted_at < ? ORDER BY id LIMIT ?")) {
+                select.setLong(1, before);
+                select.setInt(2, limit);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        rows++;
+                    }
+                }
+            }
+            if (rows == 0) {
+                return 0;
+            }
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + voteTable +
+                    " WHERE id <= ? AND voted_at < ?")) {
+                delete.setLong(1, lastId);
+                delete.setLong(2, before);
+                delete.executeUpdate();
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw failure("Could not prune the vote history: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            closeStatements();
+            if (!connection.isClosed()) {
+                connection.close();
+                logger.info("Database connection closed.");
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Error closing database connection: " + e.getMessage(), e);
+        } finally {
+            connection = null;
+        }
+    }
+
+    /**
+     * Wrap a failed operation, marking the connection to be checked before its next use.
+     */
+    protected StorageException failure(String message, SQLException e) {
+        suspect = true;
+        return new StorageException(message, e);
+    }
+
+    static byte[] toBytes(UUID playerUUID) {
+        return ByteBuffer.allocate(16)
+                .putLong(playerUUID.getMostSignificantBits())
+                .putLong(playerUUID.getLeastSignificantBits())
+                .array();
+    }
+
+    static UUID fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
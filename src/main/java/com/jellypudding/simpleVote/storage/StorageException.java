@@ -0,0 +1,10 @@
+package com.jellypudding.simpleVote.storage;
+
+/**
+ * Thrown when a token store can't be read from or written to.
+ */
+public class StorageException extends Exception {
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
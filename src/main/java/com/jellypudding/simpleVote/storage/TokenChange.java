@@ -0,0 +1,82 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unsaved change to a player's tokens, either a net amount added or removed, or a new total,
+ * together with the transactions that made it up.
+ *
+ * @param totalAt Position in the transactions of the one that set the new total, or -1 for a net amount
+ */
+public record TokenChange(boolean absolute, int amount, List<TokenTransaction> transactions, int totalAt) {
+    public static TokenChange delta(int amount) {
+        return new TokenChange(false, amount, List.of(), -1);
+    }
+
+    /**
+     * A new total, which should be given the transaction that set it with {@link #with(TokenTransaction)}.
+     */
+    public static TokenChange total(int amount) {
+        return new TokenChange(true, amount, List.of(), 0);
+    }
+
+    /**
+     * Record the transaction behind this change.
+     */
+    public TokenChange with(TokenTransaction transaction) {
+        return new TokenChange(absolute, amount, List.of(transaction), absolute ? 0 : -1);
+    }
+
+    /**
+     * Combine with a change made after this one.
+     */
+    public TokenChange then(TokenChange next) {
+        List<TokenTransaction> combined = transactions;
+        if (!next.transactions.isEmpty()) {
+            combined = new ArrayList<>(transactions.size() + next.transactions.size());
+            combined.addAll(transactions);
+            combined.addAll(next.transactions);
+        }
+        if (next.absolute) {
+            return new TokenChange(true, next.amount, combined, transactions.size() + next.totalAt);
+        }
+        return new TokenChange(absolute, amount + next.amount, combined, totalAt);
+    }
+
+    /**
+     * Leave out a transaction that turned out to be applied already.
+     * If it set the new total, the total isn't set again and only what was added after it is left,
+     * and a new total made only by that transaction is left out entirely.
+     *
+     * @return The rest of the change, or null if there is nothing left to save
+     */
+    public TokenChange without(TokenTransaction transaction) {
+        int index = transactions.indexOf(transaction);
+        if (index < 0) {
+            return this;
+        }
+        List<TokenTransaction> rest = new ArrayList<>(transactions);
+        rest.remove(index);
+
+        if (!absolute) {
+            return new TokenChange(false, amount - transaction.amount(), rest, -1);
+        }
+        if (index > totalAt) {
+            return new TokenChange(true, amount - transaction.amount(), rest, totalAt);
+        }
+        if (index < totalAt) {
+            // Made before the new total, which replaces it anyway
+            return new TokenChange(true, amount, rest, totalAt - 1);
+        }
+
+        int added = 0;
+        for (TokenTransaction after : transactions.subList(index + 1, transactions.size())) {
+            added += after.amount();
+        }
+        if (rest.isEmpty() && added == 0) {
+            return null;
+        }
+        return new TokenChange(false, added, rest, -1);
+    }
+}
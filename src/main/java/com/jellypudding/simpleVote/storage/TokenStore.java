@@ -0,0 +1,132 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Where token balances are kept between restarts, along with a ledger of the transactions that
+ * changed them and the history of votes received. A store only reads and writes what it keeps.
+ * Caching and write-behind are left to TokenManager, which never calls a store from two threads
+ * at once.
+ */
+public interface TokenStore {
+    /** Returned by {@link #load(UUID)} for a player with no stored balance, balances are never negative. */
+    int ABSENT = -1;
+
+    /**
+     * Connect and bring the schema up to date.
+     */
+    void open() throws StorageException;
+
+    /**
+     * Load one player's balance.
+     *
+     * @return The stored balance, or {@link #ABSENT} if the player has none
+     */
+    int load(UUID playerUUID) throws StorageException;
+
+    /**
+     * Load several players' balances at once.
+     *
+     * @return The stored balances, without the players who have none
+     */
+    Map<UUID, Integer> loadMany(Collection<UUID> playerUUIDs) throws StorageException;
+
+    /**
+     * Pass every stored balance to a consumer.
+     */
+    void loadAll(ObjIntConsumer<UUID> consumer) throws StorageException;
+
+    /**
+     * Apply a batch of changes.
+     * Net amounts are added to the stored balance rather than overwriting it, so changes made by
+     * anything else sharing the store aren't lost. A removal the stored balance can't cover
+     * leaves it at 0.
+     * Each change's transactions are added to the ledger in the same transaction. One whose
+     * idempotency key is already in the ledger was applied before and is left out.
+     *
+     * @return Players whose changes were not saved this time and should be tried again, if any
+     */
+    Set<UUID> upsertMany(Map<UUID, TokenChange> changes) throws StorageException;
+
+    /**
+     * Check whether the ledger has a transaction with an idempotency key.
+     */
+    boolean hasTransaction(String key) throws StorageException;
+
+    /**
+     * Fold the oldest transactions made before a time into a snapshot of each player's total,
+     * then delete them from the ledger. Their idempotency keys are forgotten.
+     *
+     * @param before Epoch milliseconds, only older transactions are folded
+     * @param limit Most transactions to fold in this call
+     * @return The number of transactions folded, less than the limit once none are left
+     */
+    int compactTransactions(long before, int limit) throws StorageException;
+
+    /**
+     * Add votes to the history, and to the daily and monthly counts for their players and services.
+     * Votes whose key is already in the history are left out.
+     */
+    void recordVotes(List<VoteRecord> votes) throws StorageException;
+
+    /**
+     * Count a player's votes over a range of periods, from the daily or monthly counts.
+     *
+     * @param first Number of the first period counted, see {@link VotePeriod#of(long)}
+     * @param last Number of the last period counted
+     */
+    int countVotes(UUID playerUUID, VotePeriod period, int first, int last) throws StorageException;
+
+    /**
+     * Count the votes through each service over a range of periods, from the daily or monthly counts.
+     *
+     * @param first Number of the first period counted, see {@link VotePeriod#of(long)}
+     * @param last Number of the last period counted
+     * @return The number of votes by service name, without services that had none
+     */
+    Map<String, Integer> countServiceVotes(VotePeriod period, int first, int last) throws StorageException;
+
+    /**
+     * Delete the oldest votes received before a time from the history. The counts are kept.
+     *
+     * @param before Epoch milliseconds, only older votes are deleted
+     * @param limit Most votes to delete in this call
+     * @return The number of votes deleted, less than the limit once none are left
+     */
+    int pruneVotes(long before, int limit) throws StorageException;
+
+    /**
+     * Check whether other servers may change balances in this store.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Pass the balances changed since the last call to a consumer, so cached copies can be refreshed.
+     * Only called on shared stores, regularly on the database thread. Balances may be passed again
+     * on later calls.
+     */
+    default void pollChanges(ObjIntConsumer<UUID> consumer) throws StorageException {
+    }
+
+    /**
+     * Do one short step of background work, such as copying rows out of an old schema.
+     * Called on the database thread after opening until it returns false.
+     *
+     * @return True if there is more work left
+     */
+    default boolean runMaintenanceStep() throws StorageException {
+        return false;
+    }
+
+    /**
+     * Close the store. It isn't used again afterwards.
+     */
+    void close();
+}
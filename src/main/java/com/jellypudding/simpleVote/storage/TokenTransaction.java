@@ -0,0 +1,11 @@
+package com.jellypudding.simpleVote.storage;
+
+/**
+ * One change to a player's tokens, recorded in the transaction ledger.
+ *
+ * @param key Idempotency key, such as the vote it rewards, or null if retrying it isn't a concern
+ * @param amount Tokens added, negative if they were removed
+ * @param time When the change was made, in epoch milliseconds
+ */
+public record TokenTransaction(String key, int amount, long time) {
+}
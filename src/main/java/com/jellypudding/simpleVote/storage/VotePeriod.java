@@ -0,0 +1,41 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Length of the periods votes are counted over.
+ * Each period is numbered, counting from 1970 in the server's time zone, and votes are added
+ * up per player and per service for every day and every month.
+ */
+public enum VotePeriod {
+    DAY(0),
+    MONTH(1);
+
+    private final int id;
+
+    VotePeriod(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the number stored for this kind of period.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Get the number of the period a time falls in.
+     *
+     * @param time Epoch milliseconds
+     */
+    public int of(long time) {
+        LocalDate date = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDate();
+        if (this == DAY) {
+            return (int) date.toEpochDay();
+        }
+        return (date.getYear() - 1970) * 12 + date.getMonthValue() - 1;
+    }
+}
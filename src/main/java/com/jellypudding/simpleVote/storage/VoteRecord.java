@@ -0,0 +1,17 @@
+package com.jellypudding.simpleVote.storage;
+
+import java.util.UUID;
+
+/**
+ * A vote received from a voting site, as kept in the vote history.
+ *
+ * @param playerUUID The voter's UUID, or null if they have never played on the server
+ * @param username The name the vote was for
+ * @param service The voting site's service name
+ * @param address The address the site gave for the voter
+ * @param time When the vote was received, in epoch milliseconds
+ * @param key Idempotency key of the vote, the same as its reward's transaction key, so a vote
+ *            delivered twice is only kept once
+ */
+public record VoteRecord(UUID playerUUID, String username, String service, String address, long time, String key) {
+}
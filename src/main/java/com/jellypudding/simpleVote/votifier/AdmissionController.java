@@ -0,0 +1,156 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a new connection to the vote listener is handled or refused
+ * Connections are limited per source address by a token bucket, and in total by a
+ * cap on how many may be queued or in progress at once, so a flood is refused
+ * straight away instead of piling up. At most {@link #MAX_TRACKED_SOURCES} addresses get a
+ * bucket of their own; while that many are tracked, new addresses share a single bucket.
+ */
+public class AdmissionController {
+    // Addresses which haven't connected for this long are forgotten
+    private static final long IDLE_MS = 60_000;
+    // Most addresses given a bucket of their own
+    private static final int MAX_TRACKED_SOURCES = 10_000;
+    // Sweeps are normally once per idle period, but come this soon while the addresses are at the limit
+    private static final long FULL_SWEEP_MS = 5_000;
+
+    private final int maxInFlight;
+    private final double connectionsPerSecond;
+    private final double burst;
+    private final Semaphore inFlight;
+    private final Map<String, TokenBucket> sources = new ConcurrentHashMap<>();
+    // Shared by addresses first seen while the map is full
+    private final TokenBucket overflow;
+    private final AtomicLong nextSweep = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param maxInFlight Connections allowed to be queued or in progress at once
+     * @param connectionsPerSecond Connections allowed per second from one address
+     */
+    public AdmissionController(int maxInFlight, double connectionsPerSecond) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.connectionsPerSecond = Math.max(0.1, connectionsPerSecond);
+        this.burst = Math.max(1, connectionsPerSecond);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.overflow = new TokenBucket(this.connectionsPerSecond, burst, System.currentTimeMillis());
+    }
+
+    /**
+     * Try to admit a connection
+     * Every admitted connection must be passed to {@link #release()} once it is finished.
+     *
+     * @param address The address the connection came from
+     * @return False if the connection should be refused
+     */
+    public boolean tryAdmit(String address) {
+        return tryAdmit(address, true);
+    }
+
+    /**
+     * Try to admit a connection
+     * Connections from a trusted proxy skip the per-address limit here, it is applied with
+     * {@link #allowAddress(String)} once the real client address is known.
+     *
+     * @param address The address the connection came from
+     * @param limitAddress Whether to apply the per-address limit to this address
+     * @return False if the connection should be refused
+     */
+    public boolean tryAdmit(String address, boolean limitAddress) {
+        // The slot is checked first so a connection refused for load doesn't spend the address's token
+        if (!inFlight.tryAcquire()) {
+            refused.incrementAndGet();
+            return false;
+        }
+        if (limitAddress && !takeToken(address)) {
+            inFlight.release();
+            refused.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Apply the per-address limit to the real client behind a proxy
+     * The connection keeps its slot either way, and must still be released.
+     *
+     * @return False if the connection should be refused
+     */
+    public boolean allowAddress(String address) {
+        if (!takeToken(address)) {
+            refused.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Free the slot held by an admitted connection
+     */
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * @return Connections allowed to be queued or in progress at once
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return Connections currently queued or in progress
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return Connections admitted since the listener started
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return Connections refused since the listener started
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    private boolean takeToken(String address) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        return bucketFor(address, now).tryTake(now);
+    }
+
+    private TokenBucket bucketFor(String address, long now) {
+        TokenBucket bucket = sources.get(address);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (sources.size() >= MAX_TRACKED_SOURCES) {
+            // Bring the next sweep forward to make room, it still runs at most once per interval
+            nextSweep.accumulateAndGet(now + FULL_SWEEP_MS, Math::min);
+            return overflow;
+        }
+        return sources.computeIfAbsent(address, k -> new TokenBucket(connectionsPerSecond, burst, now));
+    }
+
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + IDLE_MS)) {
+            return;
+        }
+        sources.values().removeIf(bucket -> bucket.isIdle(now, IDLE_MS));
+    }
+}
@@ -0,0 +1,58 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Where a vote connection comes from
+ * Holds the address of the connecting peer and, when the peer is a trusted proxy,
+ * the address of the real client taken from its PROXY header.
+ */
+public class ConnectionContext {
+    private final InetSocketAddress peerAddress;
+    private InetSocketAddress clientAddress;
+
+    public ConnectionContext(InetSocketAddress peerAddress) {
+        this.peerAddress = peerAddress;
+        this.clientAddress = peerAddress;
+    }
+
+    /**
+     * Get the address of the directly connected peer, which may be a proxy
+     */
+    public InetSocketAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    /**
+     * Get the address of the real client
+     */
+    public InetSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    /**
+     * Get the IP of the real client, used for logging and rate limiting
+     */
+    public String getHostAddress() {
+        return clientAddress.getAddress().getHostAddress();
+    }
+
+    /**
+     * Check whether the client address came from a PROXY header
+     */
+    public boolean isProxied() {
+        return clientAddress != peerAddress;
+    }
+
+    void setClientAddress(InetSocketAddress clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    @Override
+    public String toString() {
+        if (isProxied()) {
+            return getHostAddress() + " (via " + peerAddress.getAddress().getHostAddress() + ")";
+        }
+        return getHostAddress();
+    }
+}
@@ -0,0 +1,170 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much RSA work a single source address can cause
+ * Every address gets a budget of decrypts per second, and addresses that keep
+ * sending votes which fail to decrypt are refused outright for a while. At most
+ * {@link #MAX_TRACKED_SOURCES} addresses are tracked on their own; while that many are,
+ * new addresses share a single budget and failure count.
+ */
+public class DecryptGuard {
+    // Window in which failures are counted, and how long idle sources are remembered
+    private static final long FAILURE_WINDOW_MS = 60_000;
+    // Most addresses tracked on their own
+    private static final int MAX_TRACKED_SOURCES = 10_000;
+    // Sweeps are normally once per window, but come this soon while the addresses are at the limit
+    private static final long FULL_SWEEP_MS = 5_000;
+
+    private final double decryptsPerSecond;
+    private final double burst;
+    private final int maxFailures;
+    private final long blockMillis;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    // Shared by addresses first seen while the map is full
+    private final Source overflow;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * @param decryptsPerSecond Decrypts allowed per second from one address
+     * @param maxFailures Failed votes within a minute before an address is blocked
+     * @param blockSeconds How long a blocked address is refused
+     */
+    public DecryptGuard(double decryptsPerSecond, int maxFailures, int blockSeconds) {
+        this.decryptsPerSecond = Math.max(0.1, decryptsPerSecond);
+        this.burst = Math.max(1, decryptsPerSecond);
+        this.maxFailures = Math.max(1, maxFailures);
+        this.blockMillis = Math.max(1, blockSeconds) * 1000L;
+        this.overflow = new Source(System.currentTimeMillis());
+    }
+
+    /**
+     * Check whether an address is currently blocked
+     * Cheap enough to call for every accepted connection.
+     */
+    public boolean isBlocked(String address) {
+        Source source = sources.get(address);
+        return source != null && source.isBlocked(System.currentTimeMillis());
+    }
+
+    /**
+     * Take one decrypt from the address's budget
+     *
+     * @return False if the address is blocked or has used up its budget
+     */
+    public boolean tryAcquire(String address) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        return sourceFor(address, now).tryAcquire(now);
+    }
+
+    /**
+     * Record a vote from the address which was not valid ciphertext or could not be decrypted
+     *
+     * @return True if this failure got the address blocked
+     */
+    public boolean recordFailure(String address) {
+        long now = System.currentTimeMillis();
+        return sourceFor(address, now).recordFailure(now);
+    }
+
+    /**
+     * Record a vote from the address which decrypted correctly
+     */
+    public void recordSuccess(String address) {
+        Source source = sources.get(address);
+        if (source != null) {
+            source.recordSuccess();
+        }
+    }
+
+    /**
+     * @return How long a blocked address is refused, in seconds
+     */
+    public long getBlockSeconds() {
+        return blockMillis / 1000;
+    }
+
+    private Source sourceFor(String address, long now) {
+        Source source = sources.get(address);
+        if (source != null) {
+            return source;
+        }
+        if (sources.size() >= MAX_TRACKED_SOURCES) {
+            // Bring the next sweep forward to make room, it still runs at most once per interval
+            nextSweep.accumulateAndGet(now + FULL_SWEEP_MS, Math::min);
+            return overflow;
+        }
+        return sources.computeIfAbsent(address, k -> new Source(now));
+    }
+
+    /**
+     * Forget addresses which have been quiet for a while and aren't blocked
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + FAILURE_WINDOW_MS)) {
+            return;
+        }
+        sources.values().removeIf(source -> source.isIdle(now));
+    }
+
+    /**
+     * Decrypt budget and failure count for one address
+     */
+    private final class Source {
+        private final TokenBucket budget;
+        private long lastSeen;
+        private int failures;
+        private long failureWindowStart;
+        private long blockedUntil;
+
+        Source(long now) {
+            this.budget = new TokenBucket(decryptsPerSecond, burst, now);
+            this.lastSeen = now;
+            this.failureWindowStart = now;
+        }
+
+        synchronized boolean isBlocked(long now) {
+            return now < blockedUntil;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return now >= blockedUntil && now - lastSeen > FAILURE_WINDOW_MS;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            lastSeen = now;
+            if (now < blockedUntil) {
+                return false;
+            }
+            return budget.tryTake(now);
+        }
+
+        synchronized boolean recordFailure(long now) {
+            lastSeen = now;
+            if (now < blockedUntil) {
+                return false;
+            }
+
+            if (now - failureWindowStart > FAILURE_WINDOW_MS) {
+                failureWindowStart = now;
+                failures = 0;
+            }
+            if (++failures < maxFailures) {
+                return false;
+            }
+
+            failures = 0;
+            blockedUntil = now + blockMillis;
+            return true;
+        }
+
+        synchronized void recordSuccess() {
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.jellypudding.simpleVote.votifier;
+
+import com.jellypudding.simpleVote.SimpleVote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+
+/**
+ * State machine for a single connection served by the {@link NioVotifierServer}
+ * Only ever touched from the selector thread, except for the worker task which
+ * hands its result back through {@link NioVotifierServer#runOnSelector(Runnable)}.
+ */
+class NioConnection {
+    // Largest amount of unprocessed data we are willing to hold for one connection, a whole v2 frame
+    private static final int MAX_BUFFERED_BYTES = V2FrameDecoder.HEADER_SIZE + V2FrameDecoder.MAX_MESSAGE_LENGTH;
+    private static final byte[] CONNECT_PREFIX = "CONNECT ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADERS_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State {
+        PREAMBLE, DETECT, V1_BLOCK, V2_FRAME, V2_UNFRAMED, PROCESSING, CLOSING
+    }
+
+    private final NioVotifierServer server;
+    private final SocketChannel channel;
+    private final SimpleVote plugin;
+    private final VotifierProtocol protocol;
+    private final boolean debug;
+    private final String challenge;
+    private final ConnectionContext context;
+    private final long deadline;
+    // Incoming data, always kept in write mode
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_BUFFERED_BYTES);
+    // Pending outgoing data, always kept in read mode
+    private ByteBuffer out = ByteBuffer.allocate(0);
+    private SelectionKey key;
+    private State state = State.PREAMBLE;
+
+    NioConnection(NioVotifierServer server, SocketChannel channel, SimpleVote plugin,
+                  VotifierProtocol protocol, boolean debug) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.plugin = plugin;
+        this.protocol = protocol;
+        this.debug = debug;
+        this.challenge = protocol.newChallenge();
+        this.deadline = System.currentTimeMillis() + NioVotifierServer.CONNECTION_TIMEOUT_MS;
+
+        this.context = new ConnectionContext((InetSocketAddress) channel.getRemoteAddress());
+    }
+
+    /**
+     * Send the handshake and start reading
+     */
+    void start(SelectionKey key) {
+        this.key = key;
+
+        if (debug) {
+            plugin.getLogger().info("Received connection from " + context);
+        }
+
+        String handshakeMessage = protocol.handshake(challenge);
+        queueWrite(handshakeMessage.getBytes(StandardCharsets.UTF_8));
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        if (debug) {
+            plugin.getLogger().info("Sent handshake: " + handshakeMessage.trim());
+        }
+    }
+
+    /**
+     * Handle a readiness event from the selector
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (Exception e) {
+            plugin.getLogger().warning("Error processing vote: " + e.getMessage());
+            if (debug) {
+                plugin.getLogger().log(Level.WARNING, "Error details", e);
+            }
+            close();
+        }
+    }
+
+    boolean isExpired(long now) {
+        return now > deadline;
+    }
+
+    ConnectionContext getContext() {
+        return context;
+    }
+
+    private void read() throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Too much data received");
+        }
+
+        int read = channel.read(in);
+        boolean endOfStream = read == -1;
+
+        while (advance()) {
+            // Keep going while the state machine makes progress
+        }
+        // Same limit as the classic engine, the buffer has room for a frame header on top
+        if (state == State.V2_UNFRAMED && in.position() > V2FrameDecoder.MAX_MESSAGE_LENGTH) {
+            throw new IOException("v2 message too large");
+        }
+
+        if (endOfStream) {
+            onEndOfStream();
+        } else if (!in.hasRemaining() && isReading()) {
+            throw new IOException("Too much data received");
+        }
+    }
+
+    /**
+     * Try to move the state machine forward using the buffered data
+     *
+     * @return True if progress was made and another step may be possible
+     */
+    private boolean advance() throws IOException {
+        return switch (state) {
+            case PREAMBLE -> readPreamble();
+            case DETECT -> detectProtocol();
+            case V1_BLOCK -> readV1Block();
+            case V2_FRAME -> readV2Frame();
+            default -> false;
+        };
+    }
+
+    /**
+     * Decode any PROXY protocol header or answer an HTTP CONNECT request
+     */
+    private boolean readPreamble() throws IOException {
+        int available = in.position();
+        if (available == 0) {
+            return false;
+        }
+
+        ProxyProtocolDecoder.ProxyHeader header = ProxyProtocolDecoder.decode(in, available);
+        if (header == null) {
+            return false;
+        }
+
+        if (header != ProxyProtocolDecoder.NONE) {
+            consume(header.length());
+            if (protocol.applyProxyHeader(context, header) && !server.allowProxiedClient(context)) {
+                close();
+                return false;
+            }
+        } else if (matchesPrefix(CONNECT_PREFIX)) {
+            if (available < CONNECT_PREFIX.length) {
+                return false;
+            }
+            int end = indexOf(HEADERS_END, available);
+            if (end < 0) {
+                return false;
+            }
+            if (debug) {
+                plugin.getLogger().info("Received CONNECT request: " + ascii(indexOf((byte) '\n', available)).trim());
+            }
+            consume(end + HEADERS_END.length);
+
+            // Send a 200 Connection Established response
+            queueWrite("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        state = State.DETECT;
+        return true;
+    }
+
+    /**
+     * Detect whether the incoming data is using v1 or v2 protocol
+     */
+    private boolean detectProtocol() {
+        int available = in.position();
+        if (available == 0) {
+            return false;
+        }
+
+        byte first = in.get(0);
+        if (first == '{') {
+            // Bare JSON without the v2 frame header, read until the client closes its side
+            state = State.V2_UNFRAMED;
+        } else if (first == 0x73) {
+            if (available < 2) {
+                return false;
+            }
+            state = V2FrameDecoder.hasMagic(in) ? State.V2_FRAME : State.V1_BLOCK;
+        } else {
+            state = State.V1_BLOCK;
+        }
+
+        if (debug) {
+            plugin.getLogger().info("Detected vote protocol: " + (state == State.V1_BLOCK ? "V1" : "V2"));
+        }
+        return true;
+    }
+
+    /**
+     * Collect the 256-byte RSA block and decrypt it on the worker
+     */
+    private boolean readV1Block() {
+        if (in.position() < VotifierProtocol.V1_BLOCK_SIZE) {
+            return false;
+        }
+
+        byte[] block = new byte[VotifierProtocol.V1_BLOCK_SIZE];
+        in.flip();
+        in.get(block);
+        in.compact();
+
+        state = State.PROCESSING;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        boolean submitted = server.submitWork(() -> {
+            try {
+                Vote vote = protocol.decodeV1(block, context.getHostAddress());
+                String response = record(vote);
+                server.runOnSelector(() -> respond(response));
+            } catch (VoteRejectedException e) {
+                if (debug) {
+                    plugin.getLogger().info("Refused v1 vote from " + context + ": " + e.getMessage());
+                }
+                server.runOnSelector(() -> respond(VotifierProtocol.V1_ERROR_RESPONSE));
+            } catch (Exception e) {
+                plugin.getLogger().warning("Error decrypting v1 vote from " + context + ": " + e.getMessage());
+                server.runOnSelector(() -> respond(VotifierProtocol.V1_ERROR_RESPONSE));
+            }
+        });
+        if (!submitted) {
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * Read a v2 frame: the 0x733A magic, a 2-byte length and the JSON message
+     * Oversized frames are rejected as soon as the header arrives.
+     */
+    private boolean readV2Frame() throws IOException {
+        int available = in.position();
+        if (available < V2FrameDecoder.HEADER_SIZE) {
+            return false;
+        }
+
+        int length = V2FrameDecoder.decodeHeader(in);
+        int frameLength = V2FrameDecoder.HEADER_SIZE + length;
+        if (available < frameLength) {
+            return false;
+        }
+
+        // Parse the message in place
+        processV2(in.duplicate().limit(frameLength).position(V2FrameDecoder.HEADER_SIZE));
+        consume(frameLength);
+        return false;
+    }
+
+    private void onEndOfStream() {
+        if (state == State.V2_UNFRAMED) {
+            int length = in.position();
+            processV2(in.duplicate().flip());
+            consume(length);
+        } else if (state == State.V1_BLOCK && in.position() > 0) {
+            plugin.getLogger().warning("Incomplete v1 vote data received: " + in.position() + " bytes");
+            close();
+        } else if (isReading()) {
+            if (debug) {
+                plugin.getLogger().info("End of stream reached for " + context);
+            }
+            close();
+        } else if (key.isValid()) {
+            // Still answering, just stop reading
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void processV2(ByteBuffer message) {
+        state = State.PROCESSING;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        Vote vote;
+        try {
+            vote = protocol.decodeV2(message, challenge);
+        } catch (VoteRejectedException e) {
+            plugin.getLogger().warning("Rejected vote from " + context + ": " + e.getMessage());
+            respond(VotifierProtocol.errorResponse(e));
+            return;
+        } catch (Exception e) {
+            // Malformed input from the client, not a fault in the plugin
+            plugin.getLogger().warning("Could not parse v2 vote from " + context + ": " + e.getMessage());
+            if (debug) {
+                plugin.getLogger().log(Level.WARNING, "Error details", e);
+            }
+            respond(VotifierProtocol.errorResponse(e));
+            return;
+        }
+
+        if (vote == null) {
+            respond(VotifierProtocol.errorResponse("InvalidVote", "Message has no payload"));
+            return;
+        }
+
+        // Recording the vote forces it to disk, which must not hold up the selector
+        boolean submitted = server.submitWork(() -> {
+            String response = record(vote);
+            server.runOnSelector(() -> respond(response));
+        });
+        if (!submitted) {
+            close();
+        }
+    }
+
+    /**
+     * Hand the vote over for processing
+     *
+     * @return The response to send: OK once the vote is safely queued, otherwise an error
+     */
+    private String record(Vote vote) {
+        try {
+            protocol.dispatch(vote);
+            return VotifierProtocol.OK_RESPONSE;
+        } catch (VoteRejectedException e) {
+            plugin.getLogger().warning("Refused vote from " + context + ": " + e.getMessage());
+            return VotifierProtocol.errorResponse(e);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not record vote from " + context + ": " + e.getMessage());
+            return VotifierProtocol.errorResponse(e);
+        }
+    }
+
+    /**
+     * Send the final response and close once it has been written
+     */
+    private void respond(String response) {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        state = State.CLOSING;
+        queueWrite(response.getBytes(StandardCharsets.UTF_8));
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void queueWrite(byte[] data) {
+        ByteBuffer combined = ByteBuffer.allocate(out.remaining() + data.length);
+        combined.put(out).put(data).flip();
+        out = combined;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void flush() throws IOException {
+        channel.write(out);
+        if (out.hasRemaining()) {
+            return;
+        }
+
+        if (state == State.CLOSING) {
+            close();
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        state = State.CLOSING;
+        if (key != null) {
+            key.cancel();
+        }
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        server.connectionClosed();
+    }
+
+    private boolean isReading() {
+        return state == State.PREAMBLE || state == State.DETECT
+                || state == State.V1_BLOCK || state == State.V2_FRAME || state == State.V2_UNFRAMED;
+    }
+
+    /**
+     * Check whether the buffered data is, or could still become, the given prefix
+     */
+    private boolean matchesPrefix(byte[] prefix) {
+        int length = Math.min(in.position(), prefix.length);
+        for (int i = 0; i < length; i++) {
+            if (in.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte value, int limit) {
+        for (int i = 0; i < limit; i++) {
+            if (in.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] sequence, int limit) {
+        outer:
+        for (int i = 0; i <= limit - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (in.get(i + j) != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private String ascii(int length) {
+        byte[] bytes = new byte[Math.max(0, length)];
+        in.get(0, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Drop the first bytes of the input buffer
+     */
+    private void consume(int length) {
+        in.flip();
+        in.position(length);
+        in.compact();
+    }
+}
@@ -0,0 +1,312 @@
+package com.jellypudding.simpleVote.votifier;
+
+import com.jellypudding.simpleVote.SimpleVote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Selector based Votifier engine
+ * A single I/O thread drives every connection through the handshake and vote reading
+ * as a non-blocking state machine, so one slow or idle client never holds up other votes.
+ * RSA decryption and journal writes are handed to a pool of worker threads to keep the
+ * selector responsive.
+ */
+public class NioVotifierServer extends Thread implements VotifierEngine {
+    // Connections that have not completed within this time are dropped
+    static final long CONNECTION_TIMEOUT_MS = 5000;
+    private static final long SELECT_TIMEOUT_MS = 500;
+
+    private final SimpleVote plugin;
+    private final int port;
+    private final boolean debug;
+    private final VotifierProtocol protocol;
+    private final AdmissionController admission;
+    private final ExecutorService decryptWorker;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    // Only used on the selector thread
+    private long nextExpiryScan;
+
+    /**
+     * @param admission Decides which connections are handled
+     * @param decryptThreads Number of threads decrypting and recording votes, or 0 for one per CPU core
+     */
+    public NioVotifierServer(SimpleVote plugin, int port, boolean debug, VotifierProtocol protocol,
+                             AdmissionController admission, int decryptThreads) {
+        this.plugin = plugin;
+        this.port = port;
+        this.debug = debug;
+        this.protocol = protocol;
+        this.admission = admission;
+
+        int threads = decryptThreads > 0 ? decryptThreads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadId = new AtomicInteger();
+        this.decryptWorker = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SimpleVote-VoteWorker-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        setName("SimpleVote-VotifierSelector");
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            plugin.getLogger().info("Vote listener started on port " + port + " (nio engine)");
+
+            // Main selector loop
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                runSelectorTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else if (key.attachment() instanceof NioConnection connection) {
+                        connection.handle(key);
+                    }
+                }
+
+                closeExpiredConnections();
+            }
+        } catch (Exception e) {
+            if (running) {
+                plugin.getLogger().log(Level.SEVERE, "Error starting vote listener", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Accept every pending connection and queue its handshake
+     */
+    private void acceptConnections() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    plugin.getLogger().log(Level.WARNING, "Error accepting connection", e);
+                }
+                return;
+            }
+
+            if (channel == null) {
+                return;
+            }
+
+            NioConnection connection;
+            try {
+                channel.configureBlocking(false);
+                connection = new NioConnection(this, channel, plugin, protocol, debug);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Error accepting connection", e);
+                closeQuietly(channel);
+                continue;
+            }
+
+            // Behind a trusted proxy the real client is only known once its PROXY header is read
+            ConnectionContext context = connection.getContext();
+            boolean viaProxy = protocol.isTrustedProxy(context.getPeerAddress().getAddress());
+            if (protocol.isBlocked(context.getHostAddress())) {
+                closeQuietly(channel);
+                continue;
+            }
+            if (!admission.tryAdmit(context.getHostAddress(), !viaProxy)) {
+                if (debug) {
+                    plugin.getLogger().info("Refused connection from " + context + ": connection limit reached");
+                }
+                closeQuietly(channel);
+                continue;
+            }
+
+            try {
+                SelectionKey key = channel.register(selector, 0, connection);
+                connection.start(key);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Error accepting connection", e);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Check the real client behind a trusted proxy against the block list and per-address limit
+     *
+     * @return False if the connection should be closed
+     */
+    boolean allowProxiedClient(ConnectionContext context) {
+        if (protocol.isBlocked(context.getHostAddress())) {
+            return false;
+        }
+        if (!admission.allowAddress(context.getHostAddress())) {
+            if (debug) {
+                plugin.getLogger().info("Refused connection from " + context + ": connection limit reached");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called once for every admitted connection when it is closed
+     */
+    void connectionClosed() {
+        admission.release();
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Drop connections which have been open for too long
+     * Scans at most once per select timeout rather than on every wakeup, which under load would be every event.
+     */
+    private void closeExpiredConnections() {
+        long now = System.currentTimeMillis();
+        if (now < nextExpiryScan) {
+            return;
+        }
+        nextExpiryScan = now + SELECT_TIMEOUT_MS;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection && connection.isExpired(now)) {
+                if (debug) {
+                    plugin.getLogger().info("Connection from " + connection.getContext() + " timed out");
+                }
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Run tasks queued by worker threads on the selector thread
+     */
+    private void runSelectorTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.WARNING, "Error in vote listener task", e);
+            }
+        }
+    }
+
+    /**
+     * Queue a task to run on the selector thread
+     */
+    void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    /**
+     * Run RSA decryption or a journal write on the worker pool, away from the selector thread
+     *
+     * @return False if the worker is no longer accepting tasks
+     */
+    boolean submitWork(Runnable task) {
+        try {
+            decryptWorker.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void closeAll() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Shutdown the server gracefully
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+
+        // Let in-flight decrypts finish
+        decryptWorker.shutdown();
+        try {
+            boolean terminated = decryptWorker.awaitTermination(2, TimeUnit.SECONDS);
+            if (!terminated) {
+                plugin.getLogger().warning("Vote processor did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+        decryptWorker.shutdownNow();
+
+        // Wake the selector so it notices the shutdown and closes every channel
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            join(2000);
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+
+        plugin.getLogger().info("Vote listener shut down");
+    }
+}
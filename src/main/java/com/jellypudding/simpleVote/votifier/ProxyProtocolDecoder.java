@@ -0,0 +1,301 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder for HAProxy PROXY protocol headers (v1 text and v2 binary)
+ * Headers are decoded in a single pass over the buffered bytes, extracting the
+ * source address and port of the real client for IPv4 and IPv6 connections.
+ */
+public final class ProxyProtocolDecoder {
+    /** PROXY v1 headers are at most 107 bytes including CRLF */
+    public static final int MAX_V1_LENGTH = 107;
+
+    /** Largest v2 header we accept, including any TLVs */
+    public static final int MAX_V2_LENGTH = 1024;
+
+    /** Size of the fixed part of a v2 header */
+    private static final int V2_HEADER_SIZE = 16;
+
+    private static final byte[] V1_PREFIX = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] V2_SIGNATURE = new byte[] {
+        0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    /**
+     * A decoded header
+     *
+     * @param source The real client address, or null if the proxy didn't pass one on
+     * @param length The number of bytes taken up by the header
+     */
+    public record ProxyHeader(InetSocketAddress source, int length) {
+    }
+
+    /** Returned when the data doesn't start with a PROXY header */
+    public static final ProxyHeader NONE = new ProxyHeader(null, 0);
+
+    private ProxyProtocolDecoder() {
+    }
+
+    /**
+     * Decode a PROXY header at the start of the buffer
+     *
+     * @param buffer Buffer holding the received data from index 0
+     * @param available Number of bytes received so far
+     * @return The header, {@link #NONE} if there is no header, or null if more data is needed
+     * @throws IOException If the header is malformed
+     */
+    public static ProxyHeader decode(ByteBuffer buffer, int available) throws IOException {
+        if (available == 0) {
+            return null;
+        }
+        if (matchesPrefix(buffer, available, V2_SIGNATURE)) {
+            return available < V2_SIGNATURE.length ? null : decodeV2(buffer, available);
+        }
+        if (matchesPrefix(buffer, available, V1_PREFIX)) {
+            return available < V1_PREFIX.length ? null : decodeV1(buffer, available);
+        }
+        return NONE;
+    }
+
+    /**
+     * Read a PROXY header from a blocking stream
+     * Data following the header, or all data if there is no header, is pushed back onto the stream.
+     *
+     * @param in Stream with at least {@link #MAX_V1_LENGTH} bytes of pushback space
+     * @param buffer Reusable buffer of at least {@link #MAX_V2_LENGTH} bytes
+     * @return The header, or {@link #NONE} if there is no header
+     */
+    public static ProxyHeader read(PushbackInputStream in, ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset();
+        int available = 0;
+
+        while (true) {
+            ProxyHeader header = decode(buffer, available);
+            if (header != null) {
+                in.unread(data, offset + header.length(), available - header.length());
+                return header;
+            }
+
+            // Never read past the end of the header, so only a little data ever needs pushing back
+            int read = in.read(data, offset + available, readLimit(buffer, available) - available);
+            if (read == -1) {
+                // Any data we have so far is the start of a header, or it would have been decoded as NONE
+                if (available > 0) {
+                    throw new EOFException("Incomplete PROXY header");
+                }
+                return NONE;
+            }
+            available += read;
+        }
+    }
+
+    /**
+     * How much data may be read before the header is known to be complete
+     */
+    private static int readLimit(ByteBuffer buffer, int available) {
+        if (available >= V2_HEADER_SIZE && matchesPrefix(buffer, available, V2_SIGNATURE)) {
+            return V2_HEADER_SIZE + (buffer.getShort(14) & 0xFFFF);
+        }
+        if (available >= V1_PREFIX.length && matchesPrefix(buffer, available, V1_PREFIX)) {
+            return MAX_V1_LENGTH;
+        }
+        return V2_HEADER_SIZE;
+    }
+
+    /**
+     * Decode "PROXY TCP4|TCP6|UNKNOWN src dst sport dport\r\n"
+     */
+    private static ProxyHeader decodeV1(ByteBuffer buffer, int available) throws IOException {
+        // Split the line into its fields as we look for the end of it
+        String[] fields = new String[6];
+        int fieldCount = 0;
+        int fieldStart = 0;
+        int limit = Math.min(available, MAX_V1_LENGTH);
+
+        for (int i = 0; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\r' && b != '\n') {
+                continue;
+            }
+
+            if (fieldCount == fields.length) {
+                throw new IOException("Invalid PROXY v1 header: too many fields");
+            }
+            fields[fieldCount++] = ascii(buffer, fieldStart, i);
+            fieldStart = i + 1;
+
+            if (b == '\r') {
+                if (i + 1 >= available) {
+                    return null;
+                }
+                if (buffer.get(i + 1) != '\n') {
+                    throw new IOException("Invalid PROXY v1 header: expected CRLF");
+                }
+                return new ProxyHeader(parseV1Source(fields, fieldCount), i + 2);
+            }
+            if (b == '\n') {
+                throw new IOException("Invalid PROXY v1 header: expected CRLF");
+            }
+        }
+
+        if (available >= MAX_V1_LENGTH) {
+            throw new IOException("Invalid PROXY v1 header: no CRLF within " + MAX_V1_LENGTH + " bytes");
+        }
+        return null;
+    }
+
+    private static InetSocketAddress parseV1Source(String[] fields, int fieldCount) throws IOException {
+        String protocol = fieldCount > 1 ? fields[1] : "";
+        if (protocol.equals("UNKNOWN")) {
+            return null;
+        }
+        if (fieldCount != 6) {
+            throw new IOException("Invalid PROXY v1 header: expected 6 fields, got " + fieldCount);
+        }
+
+        InetAddress address = switch (protocol) {
+            case "TCP4" -> parseIPv4(fields[2]);
+            case "TCP6" -> parseIPv6(fields[2]);
+            default -> throw new IOException("Invalid PROXY v1 header: unknown protocol " + protocol);
+        };
+        return new InetSocketAddress(address, parsePort(fields[4]));
+    }
+
+    /**
+     * Decode the binary v2 header: signature, version and command, family, length and addresses
+     */
+    private static ProxyHeader decodeV2(ByteBuffer buffer, int available) throws IOException {
+        if (available < V2_HEADER_SIZE) {
+            return null;
+        }
+
+        int versionCommand = buffer.get(12) & 0xFF;
+        int family = buffer.get(13) & 0xFF;
+        int addressLength = buffer.getShort(14) & 0xFFFF;
+        int length = V2_HEADER_SIZE + addressLength;
+
+        if (versionCommand >> 4 != 2) {
+            throw new IOException("Invalid PROXY v2 header: unsupported version " + (versionCommand >> 4));
+        }
+        if (length > MAX_V2_LENGTH) {
+            throw new IOException("PROXY v2 header too large: " + length + " bytes");
+        }
+        if (available < length) {
+            return null;
+        }
+
+        int command = versionCommand & 0x0F;
+        if (command == 0x0) {
+            // LOCAL: a health check from the proxy itself, there is no client
+            return new ProxyHeader(null, length);
+        }
+        if (command != 0x1) {
+            throw new IOException("Invalid PROXY v2 header: unknown command " + command);
+        }
+
+        InetSocketAddress source = switch (family >> 4) {
+            case 0x1 -> {
+                requireLength(addressLength, 12);
+                yield new InetSocketAddress(address(buffer, V2_HEADER_SIZE, 4), buffer.getShort(24) & 0xFFFF);
+            }
+            case 0x2 -> {
+                requireLength(addressLength, 36);
+                yield new InetSocketAddress(address(buffer, V2_HEADER_SIZE, 16), buffer.getShort(48) & 0xFFFF);
+            }
+            // Unspecified or unix socket addresses carry nothing we can use
+            default -> null;
+        };
+        return new ProxyHeader(source, length);
+    }
+
+    private static void requireLength(int addressLength, int required) throws IOException {
+        if (addressLength < required) {
+            throw new IOException("Invalid PROXY v2 header: address block too short");
+        }
+    }
+
+    private static InetAddress address(ByteBuffer buffer, int index, int length) throws UnknownHostException {
+        byte[] bytes = new byte[length];
+        buffer.get(index, bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static InetAddress parseIPv4(String text) throws IOException {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4) {
+            throw new IOException("Invalid IPv4 address in PROXY header: " + text);
+        }
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int value = parseNumber(parts[i], 255);
+            if (value < 0) {
+                throw new IOException("Invalid IPv4 address in PROXY header: " + text);
+            }
+            bytes[i] = (byte) value;
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static InetAddress parseIPv6(String text) throws IOException {
+        // Only hex digits, colons and dots, so the address is parsed as a literal and never looked up
+        if (text.indexOf(':') < 0 || !text.chars().allMatch(c -> Character.digit(c, 16) >= 0 || c == ':' || c == '.')) {
+            throw new IOException("Invalid IPv6 address in PROXY header: " + text);
+        }
+        try {
+            return InetAddress.getByName(text);
+        } catch (UnknownHostException e) {
+            throw new IOException("Invalid IPv6 address in PROXY header: " + text);
+        }
+    }
+
+    private static int parsePort(String text) throws IOException {
+        int port = parseNumber(text, 65535);
+        if (port < 0) {
+            throw new IOException("Invalid port in PROXY header: " + text);
+        }
+        return port;
+    }
+
+    /**
+     * Parse a short decimal number, returning -1 if it isn't one or is above max
+     */
+    private static int parseNumber(String text, int max) {
+        if (text.isEmpty() || text.length() > 5) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= max ? value : -1;
+    }
+
+    private static boolean matchesPrefix(ByteBuffer buffer, int available, byte[] prefix) {
+        int length = Math.min(available, prefix.length);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -5,19 +5,28 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.math.BigInteger;
 import java.security.*;
+import java.security.interfaces.RSAKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 /**
  * Utility class for RSA operations used by the Votifier protocol
  */
 public class RSAUtil {
+    // Upper bound on idle ciphers kept around for reuse
+    private static final int MAX_POOLED_CIPHERS = Runtime.getRuntime().availableProcessors() * 2;
+
     private final Logger logger;
     private KeyPair keyPair;
     private boolean debug = false;
+    // Initialised decrypt ciphers, each borrowed by one thread at a time
+    private final Queue<Cipher> cipherPool = new ConcurrentLinkedQueue<>();
     
     public RSAUtil(Logger logger) {
         this.logger = logger;
@@ -80,6 +89,7 @@ public class RSAUtil {
         PrivateKey privateKey = keyFactory.generatePrivate(privateKeySpec);
         
         keyPair = new KeyPair(publicKey, privateKey);
+        cipherPool.clear();
     }
     
     /**
@@ -89,6 +99,7 @@ public class RSAUtil {
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
         keyGen.initialize(2048);
         keyPair = keyGen.generateKeyPair();
+        cipherPool.clear();
         
         // Save public key
         try (FileOutputStream out = new FileOutputStream(publicKeyFile)) {
@@ -113,10 +124,15 @@ public class RSAUtil {
                 logger.info("Decrypting " + data.length + " bytes using RSA");
             }
             
-            // Use a simple, compatible approach - just "RSA" with default options
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
-            byte[] decryptedBytes = cipher.doFinal(data);
+            // Borrow an initialised cipher rather than creating one for every vote
+            Cipher cipher = borrowCipher();
+            byte[] decryptedBytes;
+            try {
+                decryptedBytes = cipher.doFinal(data);
+            } finally {
+                // doFinal resets the cipher to its initialised state, even when it fails
+                returnCipher(cipher);
+            }
             
             String result = new String(decryptedBytes, StandardCharsets.UTF_8);
             
@@ -130,7 +146,11 @@ public class RSAUtil {
                 throw new Exception("Decrypted data doesn't start with VOTE: " + result);
             }
         } catch (Exception e) {
-            logger.severe("Failed to decrypt vote data: " + e.getMessage());
+            // Callers report the failure, junk blocks are common so only dump them when debugging
+            if (!debug) {
+                throw e;
+            }
+            logger.info("Failed to decrypt vote data: " + e.getMessage());
             
             // Log data in hex format for debugging
             StringBuilder hexDump = new StringBuilder();
@@ -147,6 +167,40 @@ public class RSAUtil {
         }
     }
     
+    /**
+     * Cheap check that a block could be RSA ciphertext for our key, done before any RSA work
+     * Valid ciphertext is exactly the size of the modulus and numerically smaller than it,
+     * which random junk fails about half of the time.
+     */
+    public boolean isPlausibleCiphertext(byte[] data) {
+        BigInteger modulus = ((RSAKey) keyPair.getPrivate()).getModulus();
+        if (data.length != (modulus.bitLength() + 7) / 8) {
+            return false;
+        }
+        return new BigInteger(1, data).compareTo(modulus) < 0;
+    }
+    
+    /**
+     * Take a cipher ready for decryption from the pool, creating one if none are idle
+     */
+    private Cipher borrowCipher() throws GeneralSecurityException {
+        Cipher cipher = cipherPool.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+        
+        // Use a simple, compatible approach - just "RSA" with default options
+        cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+        return cipher;
+    }
+    
+    private void returnCipher(Cipher cipher) {
+        if (cipherPool.size() < MAX_POOLED_CIPHERS) {
+            cipherPool.offer(cipher);
+        }
+    }
+    
     /**
      * Enable/disable debug logging
      */
@@ -0,0 +1,45 @@
+package com.jellypudding.simpleVote.votifier;
+
+/**
+ * Rate limiter allowing a steady number of events per second with a short burst
+ */
+final class TokenBucket {
+    private final double ratePerMs;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+    private long lastUsed;
+
+    /**
+     * @param perSecond Events allowed per second
+     * @param capacity Largest burst allowed, the bucket starts full
+     */
+    TokenBucket(double perSecond, double capacity, long now) {
+        this.ratePerMs = perSecond / 1000.0;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = now;
+        this.lastUsed = now;
+    }
+
+    /**
+     * Take a token if one is available
+     */
+    synchronized boolean tryTake(long now) {
+        lastUsed = now;
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMs);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Check whether the bucket hasn't been touched for the given time
+     */
+    synchronized boolean isIdle(long now, long idleMillis) {
+        return now - lastUsed > idleMillis;
+    }
+}
@@ -0,0 +1,93 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allowlist of proxies whose PROXY headers are believed
+ * Entries are single addresses or CIDR ranges such as 10.0.0.0/8 or fd00::/8.
+ */
+public class TrustedProxies {
+    private record Range(byte[] network, int prefixLength) {
+        boolean contains(byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+            int fullBytes = prefixLength / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (address[i] != network[i]) {
+                    return false;
+                }
+            }
+            int remainingBits = prefixLength % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xFF << (8 - remainingBits);
+            return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+        }
+    }
+
+    private final List<Range> ranges = new ArrayList<>();
+
+    /**
+     * @param entries Addresses or CIDR ranges
+     * @throws IllegalArgumentException If an entry can't be parsed
+     */
+    public TrustedProxies(List<String> entries) {
+        for (String entry : entries) {
+            ranges.add(parse(entry.trim()));
+        }
+    }
+
+    /**
+     * Check whether a connection from this address may pass on the real client address
+     */
+    public boolean isTrusted(InetAddress address) {
+        if (ranges.isEmpty() || address == null) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        for (Range range : ranges) {
+            if (range.contains(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if no proxies are trusted
+     */
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    private static Range parse(String entry) {
+        int slash = entry.indexOf('/');
+        String host = slash >= 0 ? entry.substring(0, slash) : entry;
+
+        byte[] network;
+        try {
+            network = InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid trusted proxy address: " + entry);
+        }
+
+        int maxPrefix = network.length * 8;
+        int prefixLength = maxPrefix;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(entry.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid trusted proxy range: " + entry);
+            }
+            if (prefixLength < 0 || prefixLength > maxPrefix) {
+                throw new IllegalArgumentException("Invalid trusted proxy range: " + entry);
+            }
+        }
+        return new Range(network, prefixLength);
+    }
+}
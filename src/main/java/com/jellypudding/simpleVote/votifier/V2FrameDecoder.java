@@ -0,0 +1,102 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder for Votifier v2 frames
+ * A frame is the 0x733A magic, a 2-byte big-endian message length and then exactly that many bytes of JSON.
+ */
+public final class V2FrameDecoder {
+    /** The "s:" magic number that starts every v2 frame */
+    public static final int MAGIC = 0x733A;
+
+    /** Size of the magic plus the length field */
+    public static final int HEADER_SIZE = 4;
+
+    /** Largest message we accept, framed or not, by either engine; real votes are only a few hundred bytes */
+    public static final int MAX_MESSAGE_LENGTH = 8192;
+
+    private V2FrameDecoder() {
+    }
+
+    /**
+     * Check whether the buffered data starts with the v2 magic number
+     *
+     * @param buffer Buffer holding at least two bytes from index 0
+     */
+    public static boolean hasMagic(ByteBuffer buffer) {
+        return (buffer.getShort(0) & 0xFFFF) == MAGIC;
+    }
+
+    /**
+     * Decode the frame header at the start of the buffer
+     *
+     * @param buffer Buffer holding at least {@link #HEADER_SIZE} bytes from index 0
+     * @return The length of the message following the header
+     * @throws IOException If the magic is wrong or the message is too large
+     */
+    public static int decodeHeader(ByteBuffer buffer) throws IOException {
+        if (!hasMagic(buffer)) {
+            throw new IOException("Invalid v2 frame magic");
+        }
+
+        int length = buffer.getShort(2) & 0xFFFF;
+        if (length == 0) {
+            throw new IOException("Empty v2 frame");
+        }
+        if (length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("v2 frame too large: " + length + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * Read the frame header from a blocking stream
+     *
+     * @param header Reusable buffer of at least {@link #HEADER_SIZE} bytes
+     * @return The length of the message following the header
+     */
+    public static int readHeader(InputStream in, ByteBuffer header) throws IOException {
+        header.clear();
+        readFully(in, header, HEADER_SIZE);
+        return decodeHeader(header);
+    }
+
+    /**
+     * Read exactly length bytes from a blocking stream into the buffer
+     * On return the buffer holds the message between position 0 and its limit.
+     */
+    public static void readFully(InputStream in, ByteBuffer buffer, int length) throws IOException {
+        int read = in.readNBytes(buffer.array(), buffer.arrayOffset(), length);
+        if (read < length) {
+            throw new EOFException("Incomplete v2 frame: " + read + " of " + length + " bytes");
+        }
+        buffer.position(0).limit(length);
+    }
+
+    /**
+     * Read an unframed JSON message (sent by some older v2 clients) until the client closes its side
+     *
+     * @param buffer Buffer of at least {@link #MAX_MESSAGE_LENGTH} bytes
+     */
+    public static void readUntilEnd(InputStream in, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (true) {
+            int read = in.read(buffer.array(), buffer.arrayOffset() + total, MAX_MESSAGE_LENGTH - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+            if (total == MAX_MESSAGE_LENGTH) {
+                if (in.read() != -1) {
+                    throw new IOException("v2 message too large");
+                }
+                break;
+            }
+        }
+        buffer.position(0).limit(total);
+    }
+}
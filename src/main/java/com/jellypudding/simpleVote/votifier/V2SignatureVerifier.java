@@ -0,0 +1,105 @@
+package com.jellypudding.simpleVote.votifier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Verifies the HMAC-SHA256 signature of v2 votes against the token configured for each voting service
+ */
+public class V2SignatureVerifier {
+    /** Name of the token used for services without their own entry */
+    public static final String DEFAULT_SERVICE = "default";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    // Upper bound on idle Macs kept around for reuse, per service
+    private static final int MAX_POOLED_MACS = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * A service's key, with Macs already initialised with it
+     * A Mac is not thread safe, so each is borrowed by one thread at a time. It is left
+     * initialised after every signature, so a returned one is ready for the next.
+     */
+    private static final class ServiceKey {
+        private final SecretKeySpec key;
+        private final Queue<Mac> pool = new ConcurrentLinkedQueue<>();
+
+        ServiceKey(String token) {
+            this.key = new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        }
+
+        Mac borrow() throws GeneralSecurityException {
+            Mac mac = pool.poll();
+            if (mac != null) {
+                return mac;
+            }
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+
+        void giveBack(Mac mac) {
+            if (pool.size() < MAX_POOLED_MACS) {
+                pool.offer(mac);
+            }
+        }
+    }
+
+    private final Map<String, ServiceKey> keys = new HashMap<>();
+    private final ServiceKey defaultKey;
+
+    /**
+     * @param tokens Tokens keyed by service name, with an optional "default" entry
+     */
+    public V2SignatureVerifier(Map<String, String> tokens) {
+        for (Map.Entry<String, String> entry : tokens.entrySet()) {
+            keys.put(entry.getKey(), new ServiceKey(entry.getValue()));
+        }
+        this.defaultKey = keys.get(DEFAULT_SERVICE);
+    }
+
+    /**
+     * Check a vote's signature
+     *
+     * @param serviceName The service the vote claims to come from
+     * @param payload The payload JSON exactly as received
+     * @param signature The base64 signature sent with the payload
+     * @return True if the signature matches the token for the service
+     */
+    public boolean verify(String serviceName, String payload, String signature) {
+        if (payload == null || signature == null) {
+            return false;
+        }
+
+        ServiceKey key = serviceName != null ? keys.getOrDefault(serviceName, defaultKey) : defaultKey;
+        if (key == null) {
+            return false;
+        }
+
+        byte[] received;
+        try {
+            received = Base64.getDecoder().decode(signature.trim());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        Mac mac;
+        try {
+            mac = key.borrow();
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+        byte[] expected = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        key.giveBack(mac);
+
+        // Constant time comparison so the signature can't be guessed byte by byte
+        return MessageDigest.isEqual(expected, received);
+    }
+}
@@ -0,0 +1,172 @@
+package com.jellypudding.simpleVote.votifier;
+
+import com.google.gson.Strictness;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Streaming parser for v2 vote messages
+ * Both the envelope and the payload are read in a single pass with a JsonReader,
+ * filling the result directly instead of building intermediate maps.
+ * The adapters hold no state, so they are shared by every connection thread.
+ */
+public final class V2VoteParser {
+    /**
+     * The outer v2 message
+     *
+     * @param payload   The payload JSON exactly as sent, which the signature covers
+     * @param signature The base64 HMAC-SHA256 signature of the payload
+     */
+    public record Envelope(String payload, String signature) {
+    }
+
+    /**
+     * The decoded payload
+     *
+     * @param vote      The vote carried by the payload
+     * @param challenge The challenge echoed back by the voting site
+     */
+    public record Payload(Vote vote, String challenge) {
+    }
+
+    public static final TypeAdapter<Envelope> ENVELOPE_ADAPTER = new EnvelopeAdapter();
+    public static final TypeAdapter<Payload> PAYLOAD_ADAPTER = new PayloadAdapter();
+
+    private V2VoteParser() {
+    }
+
+    /**
+     * Read the outer message
+     *
+     * @throws IOException If the message is not a JSON object
+     */
+    public static Envelope readEnvelope(Reader reader) throws IOException {
+        return read(ENVELOPE_ADAPTER, new JsonReader(reader));
+    }
+
+    /**
+     * Read the payload JSON carried inside the envelope
+     *
+     * @throws IOException If the payload is not a JSON object
+     */
+    public static Payload readPayload(String payload) throws IOException {
+        return read(PAYLOAD_ADAPTER, new JsonReader(new StringReader(payload)));
+    }
+
+    private static <T> T read(TypeAdapter<T> adapter, JsonReader reader) throws IOException {
+        // Accept the same relaxed JSON that older voting sites have always been able to send
+        reader.setStrictness(Strictness.LENIENT);
+        T value = adapter.read(reader);
+        if (value == null) {
+            throw new IOException("Expected a JSON object");
+        }
+        return value;
+    }
+
+    private static final class EnvelopeAdapter extends TypeAdapter<Envelope> {
+        @Override
+        public Envelope read(JsonReader in) throws IOException {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                return null;
+            }
+
+            String payload = null;
+            String signature = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "payload" -> payload = readString(in);
+                    case "signature" -> signature = readString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new Envelope(payload, signature);
+        }
+
+        @Override
+        public void write(JsonWriter out, Envelope value) throws IOException {
+            out.beginObject();
+            out.name("payload").value(value.payload());
+            out.name("signature").value(value.signature());
+            out.endObject();
+        }
+    }
+
+    private static final class PayloadAdapter extends TypeAdapter<Payload> {
+        @Override
+        public Payload read(JsonReader in) throws IOException {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                return null;
+            }
+
+            String serviceName = null;
+            String username = null;
+            String address = null;
+            String timeStamp = null;
+            String challenge = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "serviceName" -> serviceName = readString(in);
+                    case "username" -> username = readString(in);
+                    case "address" -> address = readString(in);
+                    case "timestamp" -> timeStamp = readTimestamp(in);
+                    case "challenge" -> challenge = readString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new Payload(new Vote(username, serviceName, address, timeStamp), challenge);
+        }
+
+        @Override
+        public void write(JsonWriter out, Payload value) throws IOException {
+            Vote vote = value.vote();
+            out.beginObject();
+            out.name("serviceName").value(vote.serviceName());
+            out.name("username").value(vote.username());
+            out.name("address").value(vote.address());
+            out.name("timestamp").value(vote.timeStamp());
+            out.name("challenge").value(value.challenge());
+            out.endObject();
+        }
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        // nextString also accepts numbers and returns them as written
+        return in.nextString();
+    }
+
+    /**
+     * Timestamps are usually epoch milliseconds sent as a number, read them as a long
+     */
+    private static String readTimestamp(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.NUMBER) {
+            return readString(in);
+        }
+
+        try {
+            return Long.toString(in.nextLong());
+        } catch (NumberFormatException e) {
+            // Fractional value, the reader keeps the number buffered so it can be read again
+            return Long.toString((long) in.nextDouble());
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Remembers recently received votes so a retried or replayed vote is only credited once
+ * Votes are identified by a 64-bit hash of their service, username and timestamp, kept in a
+ * ring of per-minute buckets. Each bucket is an open-addressing table which doubles in size
+ * during a burst of votes, up to a limit, and goes back to its usual size when it is reused for
+ * a later minute. Once a bucket reaches the limit, later votes in that minute aren't remembered
+ * and a warning is logged.
+ */
+public class VoteDeduplicator {
+    // Slots per minute to start with, a power of two
+    private static final int BUCKET_CAPACITY = 2048;
+    // Most slots a bucket grows to, 512 KiB
+    private static final int MAX_BUCKET_CAPACITY = 65536;
+    private static final long EMPTY = 0;
+    private static final long REMOVED = 1;
+    private static final int SNAPSHOT_MAGIC = 0x53564455;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final int windowMinutes;
+    private final Logger logger;
+    private final long[][] buckets;
+    private final long[] bucketMinutes;
+    private final int[] bucketSizes;
+    // Buckets which reached their largest size, and were warned about
+    private final boolean[] bucketsFull;
+
+    /**
+     * @param windowMinutes How long a vote is remembered, 0 disables deduplication
+     */
+    public VoteDeduplicator(int windowMinutes, Logger logger) {
+        this.windowMinutes = Math.max(0, windowMinutes);
+        this.logger = logger;
+        this.buckets = new long[this.windowMinutes][BUCKET_CAPACITY];
+        this.bucketMinutes = new long[this.windowMinutes];
+        this.bucketSizes = new int[this.windowMinutes];
+        this.bucketsFull = new boolean[this.windowMinutes];
+        Arrays.fill(bucketMinutes, -1);
+    }
+
+    /**
+     * Remember a vote
+     *
+     * @return False if the same vote was already received within the window
+     */
+    public synchronized boolean firstSeen(Vote vote) {
+        if (windowMinutes == 0 || vote.timeStamp() == null || vote.timeStamp().isBlank()) {
+            // Without a timestamp two real votes can't be told apart
+            return true;
+        }
+
+        long hash = hash(vote);
+        long minute = currentMinute();
+        for (int i = 0; i < windowMinutes; i++) {
+            if (isLive(i, minute) && contains(buckets[i], hash)) {
+                return false;
+            }
+        }
+
+        int index = (int) (minute % windowMinutes);
+        if (bucketMinutes[index] != minute) {
+            // The bucket holds a minute which has left the window, reuse it
+            reset(index, minute);
+        }
+        remember(index, hash);
+        return true;
+    }
+
+    /**
+     * Forget a vote, used when it was remembered but then couldn't be accepted
+     */
+    public synchronized void forget(Vote vote) {
+        if (windowMinutes == 0) {
+            return;
+        }
+
+        long hash = hash(vote);
+        for (long[] bucket : buckets) {
+            int slot = find(bucket, hash);
+            if (slot >= 0) {
+                bucket[slot] = REMOVED;
+            }
+        }
+    }
+
+    /**
+     * Write the live buckets to a snapshot file
+     */
+    public synchronized void save(File file) throws IOException {
+        Path path = file.toPath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        long minute = currentMinute();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+
+            int live = 0;
+            for (int i = 0; i < windowMinutes; i++) {
+                if (isLive(i, minute)) {
+                    live++;
+                }
+            }
+            out.writeInt(live);
+
+            for (int i = 0; i < windowMinutes; i++) {
+                if (!isLive(i, minute)) {
+                    continue;
+                }
+                out.writeLong(bucketMinutes[i]);
+                out.writeInt(bucketSizes[i]);
+                for (long hash : buckets[i]) {
+                    if (hash != EMPTY && hash != REMOVED) {
+                        out.writeLong(hash);
+                    }
+                }
+                // Removed slots are dropped, so the real count may be lower than the bucket size
+                out.writeLong(EMPTY);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load buckets from a snapshot file, skipping any which have left the window
+     */
+    public synchronized void load(File file) throws IOException {
+        if (windowMinutes == 0 || !file.exists()) {
+            return;
+        }
+
+        long minute = currentMinute();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a vote deduplication snapshot");
+            }
+
+            int count = in.readInt();
+            for (int b = 0; b < count; b++) {
+                long bucketMinute = in.readLong();
+                in.readInt();
+                int index = (int) (bucketMinute % windowMinutes);
+                boolean keep = minute - bucketMinute < windowMinutes && bucketMinute <= minute;
+                if (keep) {
+                    reset(index, bucketMinute);
+                }
+
+                long hash;
+                while ((hash = in.readLong()) != EMPTY) {
+                    if (keep) {
+                        remember(index, hash);
+                    }
+                }
+            }
+        }
+    }
+
+    private void reset(int index, long minute) {
+        if (buckets[index].length == BUCKET_CAPACITY) {
+            Arrays.fill(buckets[index], EMPTY);
+        } else {
+            buckets[index] = new long[BUCKET_CAPACITY];
+        }
+        bucketMinutes[index] = minute;
+        bucketSizes[index] = 0;
+        bucketsFull[index] = false;
+    }
+
+    /**
+     * Add a hash to a bucket, doubling it first once it is 75% full to keep probe sequences short
+     */
+    private void remember(int index, long hash) {
+        long[] bucket = buckets[index];
+        if (bucketSizes[index] >= bucket.length * 3 / 4) {
+            if (bucket.length >= MAX_BUCKET_CAPACITY) {
+                if (!bucketsFull[index]) {
+                    bucketsFull[index] = true;
+                    logger.warning("Over " + bucketSizes[index] + " votes received in one minute, "
+                            + "retries of any more in it won't be recognised");
+                }
+                return;
+            }
+            bucket = grow(index);
+        }
+        insert(bucket, hash);
+        bucketSizes[index]++;
+    }
+
+    private long[] grow(int index) {
+        long[] bucket = new long[buckets[index].length * 2];
+        int size = 0;
+        for (long hash : buckets[index]) {
+            // Removed slots are dropped
+            if (hash != EMPTY && hash != REMOVED) {
+                insert(bucket, hash);
+                size++;
+            }
+        }
+        buckets[index] = bucket;
+        bucketSizes[index] = size;
+        return bucket;
+    }
+
+    private boolean isLive(int index, long minute) {
+        long bucketMinute = bucketMinutes[index];
+        return bucketMinute >= 0 && minute - bucketMinute < windowMinutes;
+    }
+
+    private static boolean contains(long[] bucket, long hash) {
+        return find(bucket, hash) >= 0;
+    }
+
+    private static int find(long[] bucket, long hash) {
+        int mask = bucket.length - 1;
+        int slot = (int) hash & mask;
+        for (int probes = 0; probes < bucket.length; probes++) {
+            long value = bucket[slot];
+            if (value == hash) {
+                return slot;
+            }
+            if (value == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static void insert(long[] bucket, long hash) {
+        int mask = bucket.length - 1;
+        int slot = (int) hash & mask;
+        while (bucket[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        bucket[slot] = hash;
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    /**
+     * 64-bit FNV-1a over the identifying fields, finished with a SplitMix64 mix
+     */
+    private static long hash(Vote vote) {
+        long hash = 0xCBF29CE484222325L;
+        hash = hash(hash, vote.serviceName());
+        hash = hash(hash, vote.username() != null ? vote.username().toLowerCase() : null);
+        hash = hash(hash, vote.timeStamp());
+
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 31;
+
+        // Keep clear of the values marking empty and removed slots
+        return hash == EMPTY || hash == REMOVED ? 2 : hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+            }
+        }
+        // Separator so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xFF) * 0x100000001B3L;
+    }
+}
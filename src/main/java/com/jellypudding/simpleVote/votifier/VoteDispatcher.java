@@ -0,0 +1,160 @@
+package com.jellypudding.simpleVote.votifier;
+
+import com.jellypudding.simpleVote.SimpleVote;
+import com.jellypudding.simpleVote.events.VoteEvent;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Hands received votes over to the main thread
+ * Connection threads record votes in the {@link VoteJournal} and add them to a lock-free queue, and a single repeating task
+ * fires their VoteEvents once per tick. Each tick only spends a limited time on
+ * votes, anything left over waits for the next tick, so a burst of votes can't
+ * cause a lag spike.
+ */
+public class VoteDispatcher {
+    private final SimpleVote plugin;
+    private final VoteJournal journal;
+    private final VoteDeduplicator deduplicator;
+    private final Executor afterRewardsSaved;
+    private final long budgetNanos;
+    private final int maxPending;
+    private final Queue<VoteJournal.Entry> pending = new ConcurrentLinkedQueue<>();
+    // Size of the queue, kept separately since counting a ConcurrentLinkedQueue walks it
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private BukkitTask task;
+
+    /**
+     * @param journal Opened journal that received votes are recorded in until they are rewarded
+     * @param deduplicator Recently received votes, so a vote sent twice is only rewarded once
+     * @param afterRewardsSaved Runs a task once the rewards given so far are saved, used to mark votes consumed
+     * @param budgetMillis Time each tick may spend firing vote events
+     * @param maxPending Votes allowed to wait for the main thread before new ones are refused
+     */
+    public VoteDispatcher(SimpleVote plugin, VoteJournal journal, VoteDeduplicator deduplicator,
+                          Executor afterRewardsSaved, double budgetMillis, int maxPending) {
+        this.plugin = plugin;
+        this.journal = journal;
+        this.deduplicator = deduplicator;
+        this.afterRewardsSaved = afterRewardsSaved;
+        this.maxPending = Math.max(1, maxPending);
+        this.budgetNanos = (long) (Math.max(0.1, budgetMillis) * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Start draining the queue every tick, beginning with votes left over from the last run
+     */
+    public void start() {
+        List<VoteJournal.Entry> recovered = journal.getRecovered();
+        if (!recovered.isEmpty()) {
+            plugin.getLogger().info("Replaying " + recovered.size() + " votes received before the last shutdown");
+            pending.addAll(recovered);
+            pendingCount.addAndGet(recovered.size());
+        }
+
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::drain, 1L, 1L);
+    }
+
+    /**
+     * Record a vote in the journal and queue it to have its VoteEvent fired on the main thread
+     * Safe to call from any thread. Once this returns the vote will be delivered even if the
+     * server stops before the next tick, so it may be acknowledged. A vote already received
+     * within the deduplication window is acknowledged without being queued again.
+     *
+     * @throws VoteRejectedException If too many votes are already waiting
+     * @throws IOException If the vote could not be recorded, in which case it must not be acknowledged
+     */
+    public void dispatch(Vote vote) throws IOException, VoteRejectedException {
+        if (!deduplicator.firstSeen(vote)) {
+            // The site most likely retried after a slow acknowledgement, the vote is already rewarded
+            plugin.getLogger().info("Ignored duplicate vote from " + vote.username() + " (from " + vote.serviceName() + ")");
+            return;
+        }
+
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            // Let the site's retry through once there is room
+            deduplicator.forget(vote);
+            throw new VoteRejectedException("QueueFull", "Too many votes waiting to be processed");
+        }
+
+        try {
+            pending.offer(journal.append(vote));
+        } catch (IOException e) {
+            pendingCount.decrementAndGet();
+            deduplicator.forget(vote);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of votes waiting for the main thread
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Fire events for queued votes until the tick's budget is used up
+     * At least one vote is handled every tick so the queue always makes progress.
+     */
+    private void drain() {
+        long deadline = System.nanoTime() + budgetNanos;
+        VoteJournal.Entry entry;
+        while ((entry = pending.poll()) != null) {
+            fire(entry);
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+    }
+
+    private void fire(VoteJournal.Entry entry) {
+        pendingCount.decrementAndGet();
+        Vote vote = entry.vote();
+        try {
+            VoteEvent voteEvent = new VoteEvent(
+                vote.username(),
+                vote.serviceName(),
+                vote.address(),
+                vote.timeStamp()
+            );
+
+            // Call the event
+            Bukkit.getPluginManager().callEvent(voteEvent);
+
+            plugin.getLogger().info("Processed vote from " + vote.username() + " (from " + vote.serviceName() + ")");
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error processing vote from " + vote.username(), e);
+        } finally {
+            // Listeners have run, once their rewards are on disk the vote must not be replayed
+            afterRewardsSaved.execute(() -> journal.markConsumed(entry));
+        }
+    }
+
+    /**
+     * Stop the repeating task and fire events for any votes still queued
+     * Must be called on the main thread. The journal is left open so votes can still be
+     * marked consumed as their rewards are saved.
+     */
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+
+        VoteJournal.Entry entry;
+        while ((entry = pending.poll()) != null) {
+            fire(entry);
+        }
+    }
+}
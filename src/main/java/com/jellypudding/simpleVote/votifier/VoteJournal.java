@@ -0,0 +1,366 @@
+package com.jellypudding.simpleVote.votifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped ring journal of received votes
+ * A vote is written here before its connection is acknowledged and marked consumed once
+ * its reward has been given, so votes that were acknowledged but not yet rewarded when
+ * the server stopped are replayed on the next start.
+ *
+ * The file starts with a header holding the offset of the oldest record that may still be
+ * pending. Records follow on from it and carry on from the start of the file, over consumed
+ * records, once they reach its end, with a wrap byte marking where. The file only grows when
+ * the pending records themselves fill it.
+ *
+ * Each record is a status byte, an 8-byte sequence number, a 4-byte body length, a CRC32 of
+ * the body and the body itself, followed by an end marker, all forced to disk at once. A record
+ * cut short by a crash fails its CRC and anything left over from earlier trips round the file
+ * has a lower sequence number, so either reads as the end of the journal.
+ */
+public class VoteJournal {
+    /** Opaque handle for a vote written to the journal */
+    public record Entry(Vote vote, long sequence) {
+    }
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final int MAGIC = 0x534A5632;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 4 + 4;
+
+    private static final byte STATUS_END = 0;
+    private static final byte STATUS_PENDING = 1;
+    private static final byte STATUS_CONSUMED = 2;
+    private static final byte STATUS_WRAP = 3;
+
+    private final Path path;
+    private final Logger logger;
+    // Journal offset of every pending record, in the order they were written
+    private final Map<Long, Integer> pendingOffsets = new LinkedHashMap<>();
+    private final List<Entry> recovered = new ArrayList<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    // Offset of the oldest record in the header; nothing is written from there on until it moves
+    private int headPosition;
+    // Where records carried on from the start of the file, while they have not yet caught up with the head
+    private int wrapPosition = -1;
+    private long nextSequence;
+
+    public VoteJournal(File file, Logger logger) {
+        this.path = file.toPath();
+        this.logger = logger;
+    }
+
+    /**
+     * Open the journal, creating it if needed, and read back any votes still pending
+     */
+    public synchronized void open() throws IOException {
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER_SIZE;
+        map(exists ? Math.max(INITIAL_CAPACITY, (int) Files.size(path)) : INITIAL_CAPACITY);
+        if (exists && buffer.getInt(0) == MAGIC) {
+            recover();
+        } else {
+            if (exists) {
+                logger.warning("Vote journal has an unknown format, starting a new one");
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Get the votes that were still pending when the journal was opened
+     */
+    public synchronized List<Entry> getRecovered() {
+        return List.copyOf(recovered);
+    }
+
+    /**
+     * Durably record a received vote
+     *
+     * @return The journal entry, to be passed to {@link #markConsumed(Entry)} once the vote is rewarded
+     * @throws IOException If the vote could not be written, in which case it must not be acknowledged
+     */
+    public synchronized Entry append(Vote vote) throws IOException {
+        byte[] body = encode(vote);
+        int recordSize = RECORD_HEADER_SIZE + body.length;
+
+        // Keep room for the end marker after the record
+        if (!fits(recordSize + 1)) {
+            makeRoom(recordSize + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        long sequence = nextSequence++;
+        int offset = writePosition;
+        buffer.put(offset, STATUS_PENDING);
+        buffer.putLong(offset + 1, sequence);
+        buffer.putInt(offset + 9, body.length);
+        buffer.putInt(offset + 13, (int) crc.getValue());
+        buffer.put(offset + RECORD_HEADER_SIZE, body);
+        // Consumed records from before may follow, mark the new end
+        buffer.put(offset + recordSize, STATUS_END);
+        buffer.force(offset, recordSize + 1);
+
+        writePosition += recordSize;
+        pendingOffsets.put(sequence, offset);
+        return new Entry(vote, sequence);
+    }
+
+    /**
+     * Mark a vote as rewarded so it is not replayed
+     */
+    public synchronized void markConsumed(Entry entry) {
+        Integer offset = pendingOffsets.remove(entry.sequence());
+        if (offset == null || buffer == null) {
+            return;
+        }
+        buffer.put(offset, STATUS_CONSUMED);
+    }
+
+    /**
+     * Get the number of votes written but not yet consumed
+     */
+    public synchronized int getPendingCount() {
+        return pendingOffsets.size();
+    }
+
+    /**
+     * Flush the journal to disk and close it
+     */
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        buffer = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Read every record from the head, keeping the pending ones and stopping at the end marker or
+     * a damaged record
+     */
+    private void recover() {
+        int head = buffer.getInt(4);
+        if (head < HEADER_SIZE || head >= buffer.capacity()) {
+            logger.warning("Vote journal is damaged, starting a new one");
+            reset();
+            return;
+        }
+
+        headPosition = head;
+        int position = head;
+        int limit = buffer.capacity();
+        long lastSequence = -1;
+        while (position < limit) {
+            byte status = buffer.get(position);
+            if (status == STATUS_WRAP && wrapPosition < 0) {
+                // Records written after this one carry on from the start, up to the head
+                wrapPosition = position;
+                position = HEADER_SIZE;
+                limit = head;
+                continue;
+            }
+            if ((status != STATUS_PENDING && status != STATUS_CONSUMED) || position + RECORD_HEADER_SIZE > limit) {
+                break;
+            }
+
+            long sequence = buffer.getLong(position + 1);
+            int length = buffer.getInt(position + 9);
+            int expectedCrc = buffer.getInt(position + 13);
+            if (sequence <= lastSequence) {
+                // Left over from an earlier trip round the file
+                break;
+            }
+            if (length < 0 || position + RECORD_HEADER_SIZE + length >= limit) {
+                logger.warning("Vote journal is damaged at offset " + position + ", ignoring the rest of it");
+                break;
+            }
+
+            byte[] body = new byte[length];
+            buffer.get(position + RECORD_HEADER_SIZE, body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != expectedCrc) {
+                logger.warning("Vote journal is damaged at offset " + position + ", ignoring the rest of it");
+                break;
+            }
+
+            if (status == STATUS_PENDING) {
+                pendingOffsets.put(sequence, position);
+                recovered.add(new Entry(decode(body), sequence));
+            }
+            lastSequence = sequence;
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // New records overwrite anything after the last readable one
+        writePosition = position;
+    }
+
+    /**
+     * Start an empty journal
+     */
+    private void reset() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, HEADER_SIZE);
+        buffer.put(HEADER_SIZE, STATUS_END);
+        buffer.force();
+        headPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+        wrapPosition = -1;
+    }
+
+    /**
+     * Check whether a record fits at the write position without reaching the head or the end of the file
+     */
+    private boolean fits(int size) {
+        return writePosition + size <= (isWrapped() ? headPosition : buffer.capacity());
+    }
+
+    private boolean isWrapped() {
+        return wrapPosition >= 0;
+    }
+
+    /**
+     * Make room for a record at the write position
+     * The head is first moved up to the oldest pending record, freeing the space of every record
+     * consumed since, and writing carries on from the start of the file if that is where the room is.
+     * Only when the pending records leave no room is the file grown.
+     */
+    private void makeRoom(int size) throws IOException {
+        int head = pendingOffsets.isEmpty() ? writePosition : pendingOffsets.values().iterator().next();
+        if (head != headPosition) {
+            buffer.putInt(4, head);
+            buffer.force(0, HEADER_SIZE);
+            headPosition = head;
+            if (head <= writePosition) {
+                // Everything before the wrap has been consumed
+                wrapPosition = -1;
+            }
+            if (fits(size)) {
+                return;
+            }
+        }
+
+        if (!isWrapped() && HEADER_SIZE + size <= headPosition) {
+            // The new end marker goes in first, so a crash in between still finds the journal's end
+            buffer.put(HEADER_SIZE, STATUS_END);
+            buffer.force(HEADER_SIZE, 1);
+            buffer.put(writePosition, STATUS_WRAP);
+            buffer.force(writePosition, 1);
+            wrapPosition = writePosition;
+            writePosition = HEADER_SIZE;
+            return;
+        }
+
+        long needed = isWrapped() ? (long) wrapPosition + (writePosition - HEADER_SIZE) + size : (long) writePosition + size;
+        long capacity = buffer.capacity();
+        while (needed > capacity) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Vote journal is full");
+        }
+
+        if (capacity > buffer.capacity()) {
+            logger.info("Growing vote journal to " + (capacity / 1024) + " KiB with " + pendingOffsets.size() + " votes pending");
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        if (isWrapped()) {
+            unwrap();
+        }
+    }
+
+    /**
+     * Move the records written since the journal wrapped to follow on from the ones before, into
+     * the space after the wrap byte, so writing can carry on towards the end of the file
+     */
+    private void unwrap() {
+        int length = writePosition - HEADER_SIZE;
+        byte first = STATUS_END;
+        if (length > 0) {
+            byte[] records = new byte[length];
+            buffer.get(HEADER_SIZE, records);
+            first = records[0];
+            buffer.put(wrapPosition + 1, records, 1, length - 1);
+            buffer.put(wrapPosition + length, STATUS_END);
+            buffer.force(wrapPosition + 1, length);
+        }
+        // Replacing the wrap byte is what switches recovery over to the moved records
+        buffer.put(wrapPosition, first);
+        buffer.force(wrapPosition, 1);
+
+        int moved = wrapPosition - HEADER_SIZE;
+        int wrappedEnd = writePosition;
+        pendingOffsets.replaceAll((sequence, offset) -> offset < wrappedEnd ? offset + moved : offset);
+        writePosition = wrapPosition + length;
+        wrapPosition = -1;
+    }
+
+    private void map(int capacity) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static byte[] encode(Vote vote) {
+        byte[][] fields = {
+            bytes(vote.username()), bytes(vote.serviceName()), bytes(vote.address()), bytes(vote.timeStamp())
+        };
+        int size = 0;
+        for (byte[] field : fields) {
+            size += 4 + (field != null ? field.length : 0);
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(size);
+        for (byte[] field : fields) {
+            if (field == null) {
+                body.putInt(-1);
+            } else {
+                body.putInt(field.length).put(field);
+            }
+        }
+        return body.array();
+    }
+
+    private static Vote decode(byte[] data) {
+        ByteBuffer body = ByteBuffer.wrap(data);
+        return new Vote(string(body), string(body), string(body), string(body));
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String string(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
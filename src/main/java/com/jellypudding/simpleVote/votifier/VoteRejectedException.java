@@ -0,0 +1,24 @@
+package com.jellypudding.simpleVote.votifier;
+
+/**
+ * Thrown when a well-formed vote fails verification or can't be accepted, and must not be processed
+ */
+public class VoteRejectedException extends Exception {
+    private final String reason;
+
+    /**
+     * @param reason Short machine readable reason, sent back to the voting site as the error cause
+     * @param message Description of what went wrong
+     */
+    public VoteRejectedException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * Get the short reason the vote was rejected
+     */
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,16 @@
+package com.jellypudding.simpleVote.votifier;
+
+/**
+ * A connection engine that accepts vote connections on the Votifier port
+ */
+public interface VotifierEngine {
+    /**
+     * Start accepting connections
+     */
+    void start();
+
+    /**
+     * Stop accepting connections and release all resources
+     */
+    void shutdown();
+}
@@ -1,6 +1,15 @@
 package com.jellypudding.simpleVote.votifier;
 
 import com.jellypudding.simpleVote.SimpleVote;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Manager for our built-in Votifier functionality.
@@ -8,8 +17,13 @@ import com.jellypudding.simpleVote.SimpleVote;
  */
 public class VotifierManager {
     private final SimpleVote plugin;
-    private VotifierServer server;
+    private VotifierEngine server;
+    private AdmissionController admission;
+    private VoteDispatcher voteDispatcher;
+    private VoteDeduplicator deduplicator;
+    private VoteJournal journal;
     private RSAUtil rsaUtil;
+    private String defaultToken;
     private boolean enabled;
     
     public VotifierManager(SimpleVote plugin) {
@@ -40,9 +54,37 @@ public class VotifierManager {
         // Set debug mode for RSA operations
         rsaUtil.setDebug(debug);
         
-        // Start the server
+        // Start the server using the configured connection engine
         try {
-            server = new VotifierServer(plugin, port, debug, rsaUtil);
+            V2SignatureVerifier signatureVerifier = new V2SignatureVerifier(loadTokens());
+            DecryptGuard decryptGuard = new DecryptGuard(
+                    plugin.getConfig().getDouble("votifier.guard.decrypts-per-second", 5),
+                    plugin.getConfig().getInt("votifier.guard.max-failures", 5),
+                    plugin.getConfig().getInt("votifier.guard.block-seconds", 300));
+            journal = new VoteJournal(new File(plugin.getDataFolder(), "votes.journal"), plugin.getLogger());
+            journal.open();
+            deduplicator = loadDeduplicator();
+            voteDispatcher = new VoteDispatcher(plugin, journal, deduplicator, plugin.getTokenManager()::whenPersisted,
+                    plugin.getConfig().getDouble("votifier.dispatch-budget-ms", 5),
+                    plugin.getConfig().getInt("votifier.max-pending-votes", 10000));
+            voteDispatcher.start();
+            VotifierProtocol protocol = new VotifierProtocol(plugin, rsaUtil, signatureVerifier, decryptGuard,
+                    loadTrustedProxies(), voteDispatcher, debug);
+            admission = new AdmissionController(
+                    plugin.getConfig().getInt("votifier.max-connections", 256),
+                    plugin.getConfig().getDouble("votifier.connections-per-second", 20));
+            String engine = plugin.getConfig().getString("votifier.engine", "nio");
+            if (engine.equalsIgnoreCase("classic")) {
+                server = new VotifierServer(plugin, port, debug, protocol, admission);
+            } else if (engine.equalsIgnoreCase("virtual")) {
+                server = new VotifierServer(plugin, port, debug, protocol, admission, true);
+            } else {
+                if (!engine.equalsIgnoreCase("nio")) {
+                    plugin.getLogger().warning("Unknown votifier engine '" + engine + "', using nio");
+                }
+                int decryptThreads = plugin.getConfig().getInt("votifier.decrypt-threads", 0);
+                server = new NioVotifierServer(plugin, port, debug, protocol, admission, decryptThreads);
+            }
             server.start();
             enabled = true;
             
@@ -56,6 +98,62 @@ public class VotifierManager {
         }
     }
     
+    /**
+     * Load the tokens used to verify v2 votes, generating a default token on first start
+     */
+    private Map<String, String> loadTokens() {
+        Map<String, String> tokens = new HashMap<>();
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("votifier.tokens");
+        if (section != null) {
+            // Deep keys so service names containing dots (e.g. MinecraftServers.org) are kept whole
+            for (String service : section.getKeys(true)) {
+                if (section.isConfigurationSection(service)) {
+                    continue;
+                }
+                String token = section.getString(service);
+                if (token != null && !token.isBlank()) {
+                    tokens.put(service, token);
+                }
+            }
+        }
+        
+        if (!tokens.containsKey(V2SignatureVerifier.DEFAULT_SERVICE)) {
+            String token = new BigInteger(130, new SecureRandom()).toString(32);
+            plugin.getConfig().set("votifier.tokens." + V2SignatureVerifier.DEFAULT_SERVICE, token);
+            plugin.saveConfig();
+            tokens.put(V2SignatureVerifier.DEFAULT_SERVICE, token);
+            plugin.getLogger().info("Generated a new token for v2 voting sites, see /votekey or config.yml");
+        }
+        
+        defaultToken = tokens.get(V2SignatureVerifier.DEFAULT_SERVICE);
+        return tokens;
+    }
+    
+    /**
+     * Create the cache of recently received votes, restoring it from the last shutdown
+     */
+    private VoteDeduplicator loadDeduplicator() {
+        VoteDeduplicator deduplicator = new VoteDeduplicator(plugin.getConfig().getInt("votifier.dedup-window-minutes", 60), plugin.getLogger());
+        try {
+            deduplicator.load(new File(plugin.getDataFolder(), "votes.dedup"));
+        } catch (IOException e) {
+            plugin.getLogger().warning("Could not load recently received votes: " + e.getMessage());
+        }
+        return deduplicator;
+    }
+    
+    /**
+     * Load the proxies allowed to pass on the real client address with a PROXY header
+     */
+    private TrustedProxies loadTrustedProxies() {
+        try {
+            return new TrustedProxies(plugin.getConfig().getStringList("votifier.proxy.trusted"));
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning(e.getMessage() + ", no proxies will be trusted");
+            return new TrustedProxies(List.of());
+        }
+    }
+    
     /**
      * Shutdown the votifier functionality
      */
@@ -64,6 +162,29 @@ public class VotifierManager {
             server.shutdown();
             server = null;
         }
+        
+        // Fire events for votes that were received but not yet handed to the main thread
+        if (voteDispatcher != null) {
+            voteDispatcher.shutdown();
+            voteDispatcher = null;
+        }
+        
+        // Votes are only marked consumed once their rewards are saved, so save them before closing the journal
+        if (journal != null) {
+            plugin.getTokenManager().flush();
+            journal.close();
+            journal = null;
+        }
+        
+        // Remember recent votes so retries arriving after a restart aren't rewarded again
+        if (deduplicator != null) {
+            try {
+                deduplicator.save(new File(plugin.getDataFolder(), "votes.dedup"));
+            } catch (IOException e) {
+                plugin.getLogger().warning("Could not save recently received votes: " + e.getMessage());
+            }
+            deduplicator = null;
+        }
     }
     
     /**
@@ -73,6 +194,27 @@ public class VotifierManager {
         return enabled;
     }
     
+    /**
+     * Get the default token that v2 voting sites sign their votes with
+     */
+    public String getDefaultToken() {
+        return defaultToken;
+    }
+    
+    /**
+     * Get the number of connections admitted since the listener started
+     */
+    public long getAdmittedConnections() {
+        return admission != null ? admission.getAdmitted() : 0;
+    }
+    
+    /**
+     * Get the number of connections refused since the listener started
+     */
+    public long getRefusedConnections() {
+        return admission != null ? admission.getRefused() : 0;
+    }
+    
     /**
      * Get the RSA utility
      */
@@ -0,0 +1,236 @@
+package com.jellypudding.simpleVote.votifier;
+
+import com.google.gson.JsonObject;
+import com.jellypudding.simpleVote.SimpleVote;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Protocol logic shared by the Votifier connection engines.
+ * Decodes v1 and v2 vote messages and hands votes over to the {@link VoteDispatcher}.
+ */
+public class VotifierProtocol {
+    /** Size of an RSA encrypted v1 vote block */
+    public static final int V1_BLOCK_SIZE = 256;
+
+    /** Response sent once a vote has been accepted */
+    public static final String OK_RESPONSE = "{\"status\":\"ok\"}\r\n";
+
+    /**
+     * Response sent for any v1 vote that can't be accepted
+     * It is the same for every failure so that it reveals nothing about the RSA padding.
+     */
+    public static final String V1_ERROR_RESPONSE = errorResponse("DecryptionFailed", "Could not decrypt vote");
+
+    private final SimpleVote plugin;
+    private final RSAUtil rsaUtil;
+    private final V2SignatureVerifier signatureVerifier;
+    private final DecryptGuard decryptGuard;
+    private final TrustedProxies trustedProxies;
+    private final VoteDispatcher voteDispatcher;
+    private final boolean debug;
+
+    public VotifierProtocol(SimpleVote plugin, RSAUtil rsaUtil, V2SignatureVerifier signatureVerifier,
+                            DecryptGuard decryptGuard, TrustedProxies trustedProxies,
+                            VoteDispatcher voteDispatcher, boolean debug) {
+        this.plugin = plugin;
+        this.rsaUtil = rsaUtil;
+        this.signatureVerifier = signatureVerifier;
+        this.decryptGuard = decryptGuard;
+        this.trustedProxies = trustedProxies;
+        this.voteDispatcher = voteDispatcher;
+        this.debug = debug;
+    }
+
+    /**
+     * Check whether a peer is a proxy allowed to pass on the real client address
+     */
+    public boolean isTrustedProxy(InetAddress address) {
+        return trustedProxies.isTrusted(address);
+    }
+
+    /**
+     * Use the client address from a PROXY header, if the header came from a trusted proxy
+     * Headers from anyone else are skipped and the connecting address is kept.
+     *
+     * @return True if the client address was replaced
+     */
+    public boolean applyProxyHeader(ConnectionContext context, ProxyProtocolDecoder.ProxyHeader header) {
+        if (header.source() == null) {
+            return false;
+        }
+
+        if (!isTrustedProxy(context.getPeerAddress().getAddress())) {
+            if (debug) {
+                plugin.getLogger().info("Ignored PROXY header from untrusted peer " + context
+                        + " claiming to be " + header.source().getAddress().getHostAddress());
+            }
+            return false;
+        }
+
+        context.setClientAddress(header.source());
+        if (debug) {
+            plugin.getLogger().info("Connection from " + context + " passed on by PROXY header");
+        }
+        return true;
+    }
+
+    /**
+     * Check whether connections from an address should be refused straight away
+     */
+    public boolean isBlocked(String address) {
+        return decryptGuard.isBlocked(address);
+    }
+
+    /**
+     * Build the response sent when a vote is refused
+     *
+     * @param cause Short name of what went wrong
+     * @param error Description for the voting site
+     */
+    public static String errorResponse(String cause, String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty("status", "error");
+        response.addProperty("cause", cause);
+        response.addProperty("error", error);
+        return response + "\r\n";
+    }
+
+    /**
+     * Build the response sent when a vote is refused because of an exception
+     */
+    public static String errorResponse(Exception e) {
+        String cause = e instanceof VoteRejectedException rejected ? rejected.getReason() : e.getClass().getSimpleName();
+        return errorResponse(cause, String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Generate a new challenge for the v2 handshake
+     */
+    public String newChallenge() {
+        return UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+    }
+
+    /**
+     * Build the handshake line sent to every new connection
+     */
+    public String handshake(String challenge) {
+        return "VOTIFIER 2 " + challenge + "\n";
+    }
+
+    /**
+     * Decrypt and parse a v1 vote block
+     * Blocks that can't be ciphertext, and sources over their decrypt budget, are
+     * rejected before any RSA work is done.
+     *
+     * @param block The 256-byte RSA encrypted block
+     * @param source The address the block came from
+     * @return The decoded vote
+     * @throws VoteRejectedException If the block was refused without being decrypted
+     */
+    public Vote decodeV1(byte[] block, String source) throws Exception {
+        if (!rsaUtil.isPlausibleCiphertext(block)) {
+            recordFailure(source);
+            throw new VoteRejectedException("InvalidCiphertext", "v1 block is not valid ciphertext");
+        }
+        if (!decryptGuard.tryAcquire(source)) {
+            // Only invalid votes count towards a block, not busy but honest sources
+            throw new VoteRejectedException("RateLimited", "decrypt budget exceeded");
+        }
+
+        String voteMsg;
+        try {
+            voteMsg = rsaUtil.decrypt(block);
+        } catch (Exception e) {
+            recordFailure(source);
+            throw e;
+        }
+        decryptGuard.recordSuccess(source);
+
+        if (debug) {
+            plugin.getLogger().info("Decrypted v1 vote: " + voteMsg);
+        }
+
+        Vote vote = Vote.fromVotifierString(voteMsg);
+
+        if (debug) {
+            plugin.getLogger().info("Parsed v1 vote: " + vote);
+        }
+        return vote;
+    }
+
+    private void recordFailure(String source) {
+        if (decryptGuard.recordFailure(source)) {
+            plugin.getLogger().warning("Blocking " + source + " for " + decryptGuard.getBlockSeconds()
+                    + " seconds after repeated invalid votes");
+        }
+    }
+
+    /**
+     * Parse a v2 vote message (JSON with payload and signature)
+     *
+     * @param message Buffer holding exactly the JSON message between its position and limit
+     * @param challenge The challenge sent in the handshake
+     * @return The decoded vote, or null if the message carried no payload
+     * @throws VoteRejectedException If the signature or challenge does not match
+     */
+    public Vote decodeV2(ByteBuffer message, String challenge) throws IOException, VoteRejectedException {
+        if (debug) {
+            plugin.getLogger().info("Received v2 data: " + StandardCharsets.UTF_8.decode(message.duplicate()));
+        }
+
+        // Parse straight from the frame buffer without copying it
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(
+                message.array(), message.arrayOffset() + message.position(), message.remaining()),
+                StandardCharsets.UTF_8);
+
+        V2VoteParser.Envelope envelope = V2VoteParser.readEnvelope(reader);
+        if (envelope.payload() == null) {
+            return null;
+        }
+
+        V2VoteParser.Payload payload = V2VoteParser.readPayload(envelope.payload());
+        Vote vote = payload.vote();
+
+        // Verify the signature against the token for the claimed service
+        if (!signatureVerifier.verify(vote.serviceName(), envelope.payload(), envelope.signature())) {
+            throw new VoteRejectedException("BadSignature", "Signature verification failed for v2 vote from service '" + vote.serviceName() + "'");
+        }
+
+        // Verify the challenge so a captured vote can't be replayed on a new connection
+        // Trim to remove any CR/LF characters
+        String receivedChallenge = payload.challenge() != null ? payload.challenge().trim() : null;
+        if (!challenge.equals(receivedChallenge)) {
+            if (debug) {
+                plugin.getLogger().info("Expected challenge: '" + challenge + "', received: '" + receivedChallenge + "'");
+            }
+            throw new VoteRejectedException("BadChallenge", "Challenge verification failed for v2 vote from service '" + vote.serviceName() + "'");
+        }
+
+        if (debug) {
+            plugin.getLogger().info("Parsed v2 vote: username=" + vote.username() +
+                ", service=" + vote.serviceName() + ", address=" + vote.address() +
+                ", timestamp=" + vote.timeStamp());
+        }
+
+        return vote;
+    }
+
+    /**
+     * Record a vote and queue it to have its VoteEvent fired on the main thread
+     * The vote may only be acknowledged once this returns.
+     *
+     * @throws VoteRejectedException If the queue is full
+     * @throws IOException If the vote could not be recorded
+     */
+    public void dispatch(Vote vote) throws IOException, VoteRejectedException {
+        voteDispatcher.dispatch(vote);
+    }
+}
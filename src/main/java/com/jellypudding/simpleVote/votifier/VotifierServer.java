@@ -1,53 +1,74 @@
 package com.jellypudding.simpleVote.votifier;
 
 import com.jellypudding.simpleVote.SimpleVote;
-import com.jellypudding.simpleVote.events.VoteEvent;
-import org.bukkit.Bukkit;
 
 import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.UUID;
-import java.util.Map;
-import com.google.gson.Gson;
 
 /**
  * Server that listens for votes following the Votifier protocol
  * Supports both Votifier v1 (RSA encrypted) and v2 (JSON with HMAC) protocol
+ * This is the classic engine which handles one blocking connection at a time,
+ * or every connection on its own virtual thread when virtual threads are enabled
  */
-public class VotifierServer extends Thread {
+public class VotifierServer extends Thread implements VotifierEngine {
     private final SimpleVote plugin;
     private final int port;
     private final boolean debug;
-    private final RSAUtil rsaUtil;
+    private final VotifierProtocol protocol;
     private ServerSocket serverSocket;
     private boolean running = true;
-    private final ScheduledExecutorService voteProcessor;
-    
-    // Expected 12-byte signature for PROXY protocol v2
-    private static final byte[] PROXY_V2_SIGNATURE = new byte[] { 
-        0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A 
-    };
+    private final AdmissionController admission;
+    private final boolean virtualThreads;
+    // A single thread with a bounded queue, or a virtual thread per connection
+    private final ExecutorService connectionExecutor;
+    // Reused for every v2 message on the classic engine's single thread
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(V2FrameDecoder.MAX_MESSAGE_LENGTH);
     
     private enum VoteProtocolVersion {
         V1, V2
     }
     
-    public VotifierServer(SimpleVote plugin, int port, boolean debug, RSAUtil rsaUtil) {
+    public VotifierServer(SimpleVote plugin, int port, boolean debug, VotifierProtocol protocol,
+                          AdmissionController admission) {
+        this(plugin, port, debug, protocol, admission, false);
+    }
+
+    /**
+     * @param admission Decides which connections are handled, its in-flight limit also bounds the queue
+     * @param virtualThreads Whether each connection should be handled on its own virtual thread
+     */
+    public VotifierServer(SimpleVote plugin, int port, boolean debug, VotifierProtocol protocol,
+                          AdmissionController admission, boolean virtualThreads) {
         this.plugin = plugin;
         this.port = port;
         this.debug = debug;
-        this.rsaUtil = rsaUtil;
-        this.voteProcessor = Executors.newScheduledThreadPool(1);
+        this.protocol = protocol;
+        this.admission = admission;
+        this.virtualThreads = virtualThreads;
+        if (virtualThreads) {
+            this.connectionExecutor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("SimpleVote-VoteConnection-", 0).factory());
+        } else {
+            this.connectionExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(admission.getMaxInFlight()),
+                    runnable -> new Thread(runnable, "SimpleVote-VoteConnection"));
+        }
 
         setName("SimpleVote-VotifierServer");
     }
@@ -59,16 +80,20 @@ public class VotifierServer extends Thread {
             serverSocket = new ServerSocket();
             serverSocket.bind(new InetSocketAddress(port));
             
-            plugin.getLogger().info("Vote listener started on port " + port);
+            plugin.getLogger().info("Vote listener started on port " + port + (virtualThreads ? " (virtual thread engine)" : ""));
 
             // Main connection acceptance loop
             while (running) {
                 try {
                     Socket socket = serverSocket.accept();
+                    if (protocol.isBlocked(socket.getInetAddress().getHostAddress())) {
+                        closeQuietly(socket);
+                        continue;
+                    }
                     socket.setSoTimeout(5000); // 5 second timeout
 
                     // Handle connection in a separate thread
-                    voteProcessor.execute(() -> handleVote(socket));
+                    submitConnection(socket);
                 } catch (Exception e) {
                     if (running) {
                         plugin.getLogger().log(Level.WARNING, "Error accepting connection", e);
@@ -82,16 +107,53 @@ public class VotifierServer extends Thread {
         }
     }
     
+    /**
+     * Queue a connection for handling, refusing it straight away if it isn't admitted
+     */
+    private void submitConnection(Socket socket) {
+        // Behind a trusted proxy the per-address limit is applied once the real client is known
+        boolean viaProxy = protocol.isTrustedProxy(socket.getInetAddress());
+        if (!admission.tryAdmit(socket.getInetAddress().getHostAddress(), !viaProxy)) {
+            if (debug) {
+                plugin.getLogger().info("Refused connection from " + socket.getInetAddress().getHostAddress()
+                        + ": connection limit reached");
+            }
+            closeQuietly(socket);
+            return;
+        }
+
+        try {
+            connectionExecutor.execute(() -> {
+                try {
+                    handleVote(socket);
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            closeQuietly(socket);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // Ignore
+        }
+    }
+    
     /**
      * Handle an incoming vote connection
      */
     private void handleVote(Socket socket) {
         try (socket) {
             // Get client info for logging
-            String hostAddress = socket.getInetAddress().getHostAddress();
+            ConnectionContext context = new ConnectionContext((InetSocketAddress) socket.getRemoteSocketAddress());
 
             if (debug) {
-                plugin.getLogger().info("Received connection from " + hostAddress);
+                plugin.getLogger().info("Received connection from " + context);
             }
 
             // Configure socket with a reasonable timeout
@@ -103,7 +165,7 @@ public class VotifierServer extends Thread {
                     socket.getOutputStream(), StandardCharsets.UTF_8));
 
             // Generate challenge for v2 protocol
-            String challenge = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+            String challenge = protocol.newChallenge();
 
             // Check for pre-existing data (some v1 implementations send vote immediately)
             int availableBytes = in.available();
@@ -116,27 +178,28 @@ public class VotifierServer extends Thread {
                 }
 
                 // Skip handshake for v1 vote blocks
-                processProxyHeaders(in, socket);
-                processV1Vote(in, writer, socket);
+                if (!processProxyHeaders(in, socket, context)) {
+                    return;
+                }
+                processV1Vote(in, writer, socket, context);
                 return;
             }
 
             // Send appropriate handshake
             // Support v2 protocol as default
 
-            String handshakeMessage = "VOTIFIER 2 " + challenge;
+            String handshakeMessage = protocol.handshake(challenge);
 
             writer.write(handshakeMessage);
-            writer.newLine();
             writer.flush();
 
             if (debug) {
-                plugin.getLogger().info("Sent handshake: " + handshakeMessage);
+                plugin.getLogger().info("Sent handshake: " + handshakeMessage.trim());
             }
 
             // Process any proxy headers if available
-            if (socket.getInetAddress() != null) {
-                processProxyHeaders(in, socket);
+            if (!processProxyHeaders(in, socket, context)) {
+                return;
             }
 
             // Set socket timeout instead of busy-waiting
@@ -147,17 +210,17 @@ public class VotifierServer extends Thread {
             try {
                 if (in.available() == 0) {
                     // Try to read at least one byte to trigger timeout if needed
-                    in.mark(1);
                     int readByte = in.read();
                     if (readByte == -1) {
                         // End of stream reached
-                        plugin.getLogger().warning("End of stream reached for " + hostAddress);
+                        plugin.getLogger().warning("End of stream reached for " + context);
                         return;
                     }
-                    in.reset();
+                    // PushbackInputStream has no mark/reset, push the byte back instead
+                    in.unread(readByte);
                 }
             } catch (java.net.SocketTimeoutException e) {
-                plugin.getLogger().warning("No data received from " + hostAddress);
+                plugin.getLogger().warning("No data received from " + context);
                 return;
             } finally {
                 // Restore original timeout
@@ -173,9 +236,9 @@ public class VotifierServer extends Thread {
 
             // Process the vote according to its protocol
             if (protocolVersion == VoteProtocolVersion.V1) {
-                processV1Vote(in, writer, socket);
+                processV1Vote(in, writer, socket, context);
             } else {
-                processV2Vote(in, writer, challenge, socket);
+                processV2Vote(in, writer, challenge, socket, context);
             }
 
         } catch (java.net.SocketTimeoutException e) {
@@ -226,9 +289,9 @@ public class VotifierServer extends Thread {
     /**
      * Process a v1 protocol vote (RSA encrypted block)
      */
-    private void processV1Vote(PushbackInputStream in, BufferedWriter writer, Socket socket) throws Exception {
+    private void processV1Vote(PushbackInputStream in, BufferedWriter writer, Socket socket, ConnectionContext context) throws Exception {
         // For v1, we need to read 256 bytes of encrypted data
-        byte[] block = new byte[256];
+        byte[] block = new byte[VotifierProtocol.V1_BLOCK_SIZE];
         int totalRead = 0;
         
         if (debug) {
@@ -271,27 +334,22 @@ public class VotifierServer extends Thread {
         }
         
         // Only proceed if we got the full 256 bytes
-        if (totalRead == 256) {
+        if (totalRead == VotifierProtocol.V1_BLOCK_SIZE) {
             try {
                 // Decrypt the vote
-                String voteMsg = rsaUtil.decrypt(block);
-                
-                if (debug) {
-                    plugin.getLogger().info("Decrypted v1 vote: " + voteMsg);
-                }
+                Vote vote = protocol.decodeV1(block, context.getHostAddress());
                 
-                Vote vote = Vote.fromVotifierString(voteMsg);
+                // Process the vote on the main thread
+                processVoteEvent(vote, writer, socket, context);
                 
+            } catch (VoteRejectedException e) {
                 if (debug) {
-                    plugin.getLogger().info("Parsed v1 vote: " + vote);
+                    plugin.getLogger().info("Refused v1 vote from " + context + ": " + e.getMessage());
                 }
-                
-                // Process the vote on the main thread
-                processVoteEvent(vote, writer, socket);
-                
+                sendResponse(writer, socket, VotifierProtocol.V1_ERROR_RESPONSE);
             } catch (Exception e) {
-                plugin.getLogger().severe("Error decrypting v1 vote: " + e.getMessage());
-                plugin.getLogger().log(Level.SEVERE, "Error details", e);
+                plugin.getLogger().warning("Error decrypting v1 vote from " + context + ": " + e.getMessage());
+                sendResponse(writer, socket, VotifierProtocol.V1_ERROR_RESPONSE);
             }
         } else {
             plugin.getLogger().warning("Incomplete v1 vote data received: " + totalRead + " bytes");
@@ -301,185 +359,125 @@ public class VotifierServer extends Thread {
     /**
      * Process a v2 protocol vote (JSON with payload and signature)
      */
-    private void processV2Vote(PushbackInputStream in, BufferedWriter writer, String challenge, Socket socket) throws Exception {
-        // Read the full JSON data
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int b;
-        while ((b = in.read()) != -1) {
-            baos.write(b);
-        }
-        
-        byte[] fullData = baos.toByteArray();
-        String jsonString = new String(fullData, StandardCharsets.UTF_8);
+    private void processV2Vote(PushbackInputStream in, BufferedWriter writer, String challenge, Socket socket, ConnectionContext context) throws Exception {
+        ByteBuffer message = frameBuffer();
         
-        if (debug) {
-            plugin.getLogger().info("Received v2 data: " + jsonString);
+        int first = in.read();
+        if (first == -1) {
+            throw new EOFException("No v2 vote data received");
         }
+        in.unread(first);
         
-        // Skip the magic number bytes if present (s:)
-        if (fullData.length > 2 && fullData[0] == 0x73 && fullData[1] == 0x3A) {
-            jsonString = new String(fullData, 2, fullData.length - 2, StandardCharsets.UTF_8);
+        if (first == '{') {
+            // Bare JSON without the frame header, read until the client closes its side
+            V2FrameDecoder.readUntilEnd(in, message);
+        } else {
+            // Read exactly the framed message, rejecting oversized frames before reading them
+            int length = V2FrameDecoder.readHeader(in, message);
+            V2FrameDecoder.readFully(in, message, length);
         }
         
-        // Try to find the valid JSON portion
-        int jsonStart = Math.max(0, jsonString.indexOf('{'));
-        int jsonEnd = jsonString.lastIndexOf('}');
-        
-        if (jsonEnd > jsonStart) {
-            jsonString = jsonString.substring(jsonStart, jsonEnd + 1);
-            
+        // Parse as JSON
+        Vote vote;
+        try {
+            vote = protocol.decodeV2(message, challenge);
+        } catch (VoteRejectedException e) {
+            plugin.getLogger().warning("Rejected vote from " + context + ": " + e.getMessage());
+            sendResponse(writer, socket, VotifierProtocol.errorResponse(e));
+            return;
+        } catch (Exception e) {
+            // Malformed input from the client, not a fault in the plugin
+            plugin.getLogger().warning("Could not parse v2 vote from " + context + ": " + e.getMessage());
             if (debug) {
-                plugin.getLogger().info("Extracted JSON: " + jsonString);
+                plugin.getLogger().log(Level.WARNING, "Error details", e);
             }
-            
-            // Parse as JSON
-            try {
-                Map<String, Object> jsonMap = new Gson().fromJson(jsonString, new com.google.gson.reflect.TypeToken<Map<String, Object>>(){}.getType());
-                
-                if (jsonMap.containsKey("payload")) {
-                    String payload = (String) jsonMap.get("payload");
-                    Map<String, Object> voteData = new Gson().fromJson(payload, new com.google.gson.reflect.TypeToken<Map<String, Object>>(){}.getType());
-                    
-                    // Verify the challenge if available
-                    if (voteData.containsKey("challenge")) {
-                        String receivedChallenge = (String) voteData.get("challenge");
-                        // Trim to remove any CR/LF characters
-                        receivedChallenge = receivedChallenge.trim();
-                        if (!challenge.equals(receivedChallenge)) {
-                            plugin.getLogger().warning("Challenge verification failed for v2 vote.");
-                            plugin.getLogger().warning("Expected: '" + challenge + "', received: '" + receivedChallenge + "'");
-                            
-                            // Continue anyway in case there are format issues
-                        }
-                    }
-                    
-                    String username = (String) voteData.get("username");
-                    String serviceName = (String) voteData.get("serviceName");
-                    String address = (String) voteData.get("address");
-                    
-                    // Handle timestamp which may be a number or a string
-                    String timestamp;
-                    Object rawTimestamp = voteData.get("timestamp");
-                    if (rawTimestamp instanceof Double) {
-                        // Convert numeric timestamp to string
-                        timestamp = String.valueOf(((Double) rawTimestamp).longValue());
-                    } else if (rawTimestamp instanceof Long) {
-                        timestamp = String.valueOf(rawTimestamp);
-                    } else {
-                        // Already a string or other format
-                        timestamp = String.valueOf(rawTimestamp);
-                    }
-                    
-                    if (debug) {
-                        plugin.getLogger().info("Parsed v2 vote: username=" + username + 
-                            ", service=" + serviceName + ", address=" + address + 
-                            ", timestamp=" + timestamp);
-                    }
-                    
-                    Vote vote = new Vote(username, serviceName, address, timestamp);
-                    processVoteEvent(vote, writer, socket);
-                }
-            } catch (Exception e) {
-                plugin.getLogger().severe("Error processing V2 vote: " + e.getMessage());
-                plugin.getLogger().log(Level.SEVERE, "Error details", e);
+            sendResponse(writer, socket, VotifierProtocol.errorResponse(e));
+            return;
+        }
+        
+        if (vote == null) {
+            sendResponse(writer, socket, VotifierProtocol.errorResponse("InvalidVote", "Message has no payload"));
+            return;
+        }
+        processVoteEvent(vote, writer, socket, context);
+    }
+    
+    /**
+     * Get a buffer for a v2 message
+     * The classic engine reuses one buffer, virtual threads each need their own.
+     */
+    private ByteBuffer frameBuffer() {
+        if (virtualThreads) {
+            return ByteBuffer.allocate(V2FrameDecoder.MAX_MESSAGE_LENGTH);
+        }
+        return frameBuffer.clear();
+    }
+    
+    /**
+     * Queue the vote for the main thread and acknowledge it once it is safely recorded
+     */
+    private void processVoteEvent(Vote vote, BufferedWriter writer, Socket socket, ConnectionContext context) {
+        try {
+            protocol.dispatch(vote);
+        } catch (VoteRejectedException e) {
+            plugin.getLogger().warning("Refused vote from " + context + ": " + e.getMessage());
+            sendResponse(writer, socket, VotifierProtocol.errorResponse(e));
+            return;
+        } catch (Exception e) {
+            plugin.getLogger().severe("Could not record vote from " + context + ": " + e.getMessage());
+            if (debug) {
+                plugin.getLogger().log(Level.WARNING, "Error details", e);
             }
-        } else {
-            plugin.getLogger().warning("Invalid JSON format in v2 vote");
-            throw new IllegalArgumentException("Invalid JSON in vote data");
+            sendResponse(writer, socket, VotifierProtocol.errorResponse(e));
+            return;
         }
+        
+        // Send a JSON success response for both v1 and v2
+        sendResponse(writer, socket, VotifierProtocol.OK_RESPONSE);
     }
     
     /**
-     * Process the Vote event on the main thread and send a response
+     * Send the final response, the connection is closed straight after
      */
-    private void processVoteEvent(Vote vote, BufferedWriter writer, Socket socket) {
-        voteProcessor.submit(() -> {
-            try {
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    VoteEvent voteEvent = new VoteEvent(
-                        vote.username(),
-                        vote.serviceName(),
-                        vote.address(),
-                        vote.timeStamp()
-                    );
-                    
-                    // Call the event
-                    Bukkit.getPluginManager().callEvent(voteEvent);
-                    
-                    plugin.getLogger().info("Processed vote from " + vote.username() + " (from " + vote.serviceName() + ")");
-                });
-                
-                // Send success response
-                try {
-                    if (writer != null && socket != null && !socket.isClosed()) {
-                        // Send a JSON success response for both v1 and v2
-                        writer.write("{\"status\":\"ok\"}\r\n");
-                        writer.flush();
-                    }
-                } catch (Exception e) {
-                    if (debug) {
-                        plugin.getLogger().warning("Failed to send OK response: " + e.getMessage());
-                    }
-                }
-            } catch (Exception e) {
-                plugin.getLogger().warning("Error processing vote event: " + e.getMessage());
-                if (debug) {
-                    plugin.getLogger().log(Level.WARNING, "Error details", e);
-                }
+    private void sendResponse(BufferedWriter writer, Socket socket, String response) {
+        try {
+            if (!socket.isClosed()) {
+                writer.write(response);
+                writer.flush();
+            }
+        } catch (Exception e) {
+            if (debug) {
+                plugin.getLogger().warning("Failed to send response: " + e.getMessage());
             }
-        });
+        }
     }
     
     /**
-     * Processes and discards any proxy headers if present
+     * Decodes any PROXY protocol header, or answers an HTTP CONNECT request
+     *
+     * @return False if the real client behind a trusted proxy should be refused
      */
-    private void processProxyHeaders(PushbackInputStream in, Socket socket) throws Exception {
+    private boolean processProxyHeaders(PushbackInputStream in, Socket socket, ConnectionContext context) throws Exception {
+        // The frame buffer is free until the vote itself is read
+        ProxyProtocolDecoder.ProxyHeader header = ProxyProtocolDecoder.read(in, frameBuffer());
+        if (header != ProxyProtocolDecoder.NONE) {
+            if (debug) {
+                plugin.getLogger().info("Read PROXY header (" + header.length() + " bytes)");
+            }
+            if (protocol.applyProxyHeader(context, header)) {
+                return allowProxiedClient(context);
+            }
+            return true;
+        }
+        
         byte[] headerPeek = new byte[32];
         int bytesRead = in.read(headerPeek);
         
         if (bytesRead > 0) {
             String headerString = new String(headerPeek, 0, bytesRead, StandardCharsets.US_ASCII);
             
-            // PROXY v1 protocol (text-based)
-            if (headerString.startsWith("PROXY") && !headerString.contains("CONNECT")) {
-                in.unread(headerPeek, 0, bytesRead);
-                ByteArrayOutputStream headerLine = new ByteArrayOutputStream();
-                byte[] buf = new byte[1];
-                while (in.read(buf) != -1) {
-                    headerLine.write(buf[0]);
-                    if (buf[0] == '\n')
-                        break;
-                }
-                String proxyHeader = headerLine.toString(StandardCharsets.US_ASCII).trim();
-                if (debug) {
-                    plugin.getLogger().info("Discarded PROXY v1 header: " + proxyHeader);
-                }
-            }
-            // PROXY v2 protocol (binary)
-            else if (bytesRead >= 12 && isProxyV2Header(headerPeek)) {
-                int addrLength = ((headerPeek[14] & 0xFF) << 8) | (headerPeek[15] & 0xFF);
-                int totalV2HeaderLength = 16 + addrLength;
-                int remaining = totalV2HeaderLength - bytesRead;
-                
-                byte[] discard = new byte[remaining];
-                int readRemaining = 0;
-                while (readRemaining < remaining) {
-                    int r = in.read(discard, readRemaining, remaining - readRemaining);
-                    if (r == -1)
-                        break;
-                    readRemaining += r;
-                }
-                
-                if (readRemaining != remaining) {
-                    throw new Exception("Incomplete PROXY protocol v2 header");
-                }
-                
-                if (debug) {
-                    plugin.getLogger().info("Discarded PROXY v2 header (" + totalV2HeaderLength + " bytes)");
-                }
-            }
             // HTTP CONNECT tunneling
-            else if (headerString.startsWith("CONNECT")) {
+            if (headerString.startsWith("CONNECT")) {
                 in.unread(headerPeek, 0, bytesRead);
                 String connectLine = readLine(in);
                 
@@ -500,29 +498,31 @@ public class VotifierServer extends Thread {
                 writer.write("HTTP/1.1 200 Connection Established\r\n\r\n");
                 writer.flush();
             }
-            // No proxy protocol, push back the data
+            // Nothing to skip, push back the data
             else {
                 in.unread(headerPeek, 0, bytesRead);
             }
         }
+        return true;
     }
     
     /**
-     * Checks if the header matches the PROXY v2 protocol signature
+     * Check the real client behind a trusted proxy against the block list and per-address limit
      */
-    private boolean isProxyV2Header(byte[] header) {
-        if (header.length < PROXY_V2_SIGNATURE.length) {
+    private boolean allowProxiedClient(ConnectionContext context) {
+        if (protocol.isBlocked(context.getHostAddress())) {
             return false;
         }
-        
-        for (int i = 0; i < PROXY_V2_SIGNATURE.length; i++) {
-            if (header[i] != PROXY_V2_SIGNATURE[i]) {
-                return false;
+        if (!admission.allowAddress(context.getHostAddress())) {
+            if (debug) {
+                plugin.getLogger().info("Refused connection from " + context + ": connection limit reached");
             }
+            return false;
         }
         return true;
     }
     
+    
     /**
      * Reads a line from the input stream
      */
@@ -555,20 +555,20 @@ public class VotifierServer extends Thread {
     /**
      * Shutdown the server gracefully
      */
+    @Override
     public void shutdown() {
         running = false;
         
-        // Shutdown the vote processor
-        voteProcessor.shutdown();
+        // Give connections in progress a short grace period
+        connectionExecutor.shutdown();
         try {
-            boolean terminated = voteProcessor.awaitTermination(2, TimeUnit.SECONDS);
-            if (!terminated) {
-                plugin.getLogger().warning("Vote processor did not terminate in time");
+            if (!connectionExecutor.awaitTermination(2, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Vote connections did not finish in time");
             }
         } catch (InterruptedException e) {
             // Ignore
         }
-        voteProcessor.shutdownNow();
+        connectionExecutor.shutdownNow();
         
         // Close the server socket
         if (serverSocket != null) {